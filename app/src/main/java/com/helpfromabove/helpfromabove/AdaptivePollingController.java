@@ -0,0 +1,154 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+/**
+ * Picks how often the UASCClient polls for images and GPS locations.
+ * <p>
+ * Each completed request updates smoothed round trip time, error rate,
+ * payload size and throughput for its type. The delay is then moved
+ * toward the fastest rate the link can carry without requests queueing
+ * behind each other:
+ * - at least RTT_HEADROOM times the round trip time,
+ * - images use at most MAX_LINK_SHARE of the measured throughput,
+ * - errors back the delay off quickly, recoveries speed it up slowly.
+ * Images are polled HIDDEN_DELAY_FACTOR times slower while no UI is
+ * showing them. Delays always stay within the configured bounds.
+ * <p>
+ * Requests over HTTP and the stream link are measured. The MJPEG stream
+ * is paced by the UASC, so it is not, and only waits the image delay
+ * before reconnecting.
+ */
+
+public class AdaptivePollingController {
+    private static final String TAG = "AdaptivePollingCont...";
+
+    //Weight of the newest sample in the smoothed values
+    private static final double SMOOTHING = 0.2;
+    private static final double RTT_HEADROOM = 1.5;
+    private static final double MAX_LINK_SHARE = 0.75;
+    private static final double MAX_ERROR_RATE = 0.25;
+    private static final double BACKOFF_FACTOR = 2.0;
+    private static final double SPEED_UP_FACTOR = 0.9;
+    private static final int HIDDEN_DELAY_FACTOR = 3;
+
+    private final PolledRate imageRate;
+    private final PolledRate gpsRate;
+    private boolean uiVisible = true;
+
+    protected AdaptivePollingController(int imageMinDelay, int imageMaxDelay, int imageInitialDelay,
+                                        int gpsMinDelay, int gpsMaxDelay, int gpsInitialDelay) {
+        imageRate = new PolledRate("image", imageMinDelay, imageMaxDelay, imageInitialDelay);
+        gpsRate = new PolledRate("gps", gpsMinDelay, gpsMaxDelay, gpsInitialDelay);
+    }
+
+    protected synchronized void reset() {
+        imageRate.reset();
+        gpsRate.reset();
+    }
+
+    protected synchronized void setUiVisible(boolean uiVisible) {
+        this.uiVisible = uiVisible;
+    }
+
+    protected synchronized int getImageAccessDelay() {
+        return imageRate.delay;
+    }
+
+    protected synchronized int getGpsAccessDelay() {
+        return gpsRate.delay;
+    }
+
+    /*
+     * Returns the new delay for requests of the given type. payloadBytes
+     * is 0 when the request succeeded without a body.
+     */
+    protected synchronized int onRequestComplete(UASCClient.RequestType type, long roundTripMillis, int payloadBytes, boolean success) {
+        int delay;
+        switch (type) {
+            case IMAGE:
+                delay = imageRate.onRequestComplete(roundTripMillis, payloadBytes, success, uiVisible ? 1 : HIDDEN_DELAY_FACTOR);
+                break;
+            case GPS:
+                delay = gpsRate.onRequestComplete(roundTripMillis, payloadBytes, success, 1);
+                break;
+            default:
+                Log.w(TAG, "onRequestComplete: default: type=" + type);
+                delay = -1;
+                break;
+        }
+
+        return delay;
+    }
+
+    private static double smooth(double average, double sample) {
+        return (average < 0) ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private static class PolledRate {
+        private final String name;
+        private final int minDelay;
+        private final int maxDelay;
+        private final int initialDelay;
+
+        private int delay;
+        private double roundTripMillis;
+        private double errorRate;
+        private double payloadBytes;
+        private double bytesPerMilli;
+
+        PolledRate(String name, int minDelay, int maxDelay, int initialDelay) {
+            this.name = name;
+            this.minDelay = minDelay;
+            this.maxDelay = maxDelay;
+            this.initialDelay = initialDelay;
+            reset();
+        }
+
+        void reset() {
+            delay = initialDelay;
+            roundTripMillis = -1;
+            errorRate = 0;
+            payloadBytes = -1;
+            bytesPerMilli = -1;
+        }
+
+        int onRequestComplete(long sampleRoundTripMillis, int samplePayloadBytes, boolean success, int delayFactor) {
+            errorRate = smooth(errorRate, success ? 0 : 1);
+
+            if (success) {
+                roundTripMillis = smooth(roundTripMillis, sampleRoundTripMillis);
+                if (samplePayloadBytes > 0) {
+                    payloadBytes = smooth(payloadBytes, samplePayloadBytes);
+                    bytesPerMilli = smooth(bytesPerMilli, samplePayloadBytes / (double) Math.max(sampleRoundTripMillis, 1));
+                }
+            }
+
+            double floor = minDelay;
+            if (roundTripMillis > 0) {
+                floor = Math.max(floor, roundTripMillis * RTT_HEADROOM);
+            }
+            if (payloadBytes > 0 && bytesPerMilli > 0) {
+                floor = Math.max(floor, payloadBytes / (bytesPerMilli * MAX_LINK_SHARE));
+            }
+            floor *= delayFactor;
+
+            double newDelay;
+            if (!success || errorRate > MAX_ERROR_RATE) {
+                newDelay = delay * BACKOFF_FACTOR;
+            } else if (delay > floor) {
+                newDelay = Math.max(floor, delay * SPEED_UP_FACTOR);
+            } else {
+                newDelay = floor;
+            }
+
+            int clampedDelay = (int) Math.min(maxDelay, Math.max(minDelay, newDelay));
+            if (clampedDelay != delay) {
+                Log.d(TAG, name + " delay " + delay + "ms -> " + clampedDelay + "ms (rtt=" + (int) roundTripMillis + "ms, errors=" + errorRate + ")");
+                delay = clampedDelay;
+            }
+
+            return delay;
+        }
+    }
+}
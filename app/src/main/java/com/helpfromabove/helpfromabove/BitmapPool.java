@@ -0,0 +1,162 @@
+package com.helpfromabove.helpfromabove;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Mutable Bitmaps kept by size so frames can be decoded into an old
+ * frame's Bitmap with BitmapFactory.Options.inBitmap, instead of a new
+ * Bitmap being allocated, and the old one collected, for every frame.
+ * <p>
+ * Bitmaps are given back with release once nothing draws or reads them
+ * any more. The pool holds at most MAX_MEMORY_FRACTION of the heap,
+ * anything released past that is left for the GC.
+ */
+
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static final int MAX_MEMORY_FRACTION = 8;
+
+    private static final BitmapPool instance = new BitmapPool(Runtime.getRuntime().maxMemory() / MAX_MEMORY_FRACTION);
+
+    private final long maxPooledBytes;
+    private final HashMap<Long, ArrayDeque<Bitmap>> bitmapsBySize = new HashMap<>();
+    private long pooledBytes = 0;
+
+    private BitmapPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    protected static BitmapPool getInstance() {
+        return instance;
+    }
+
+    /*
+     * Decodes the image at full resolution.
+     */
+    protected Bitmap decode(byte[] data, int offset, int length) {
+        return decode(data, offset, length, 0, 0);
+    }
+
+    /*
+     * Decodes the image, downsampled to the smallest size that still
+     * covers requestedWidth by requestedHeight, into a pooled Bitmap of
+     * that size if there is one. A requested size of 0 is full resolution.
+     * Returns null if the data is not an image.
+     */
+    protected Bitmap decode(byte[] data, int offset, int length, int requestedWidth, int requestedHeight) {
+        BitmapFactory.Options options = decodeBounds(data, offset, length);
+        if (options == null) {
+            return null;
+        }
+
+        int sampleSize = calculateInSampleSize(options.outWidth, options.outHeight, requestedWidth, requestedHeight);
+        return decode(data, offset, length, options, sampleSize);
+    }
+
+    /*
+     * Decodes the image scaled down by sampleSize, a power of two.
+     * Returns null if the data is not an image.
+     */
+    protected Bitmap decodeSampled(byte[] data, int offset, int length, int sampleSize) {
+        BitmapFactory.Options options = decodeBounds(data, offset, length);
+        if (options == null) {
+            return null;
+        }
+
+        return decode(data, offset, length, options, sampleSize);
+    }
+
+    private BitmapFactory.Options decodeBounds(byte[] data, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        return options;
+    }
+
+    private Bitmap decode(byte[] data, int offset, int length, BitmapFactory.Options options, int sampleSize) {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = acquire((options.outWidth + sampleSize - 1) / sampleSize, (options.outHeight + sampleSize - 1) / sampleSize);
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException iAE) {
+            //The pooled Bitmap can not hold this image after all
+            Log.w(TAG, "decode: could not reuse Bitmap: " + iAE.getMessage());
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+
+        if (bitmap == null && options.inBitmap != null) {
+            release(options.inBitmap);
+        }
+
+        return bitmap;
+    }
+
+    protected synchronized Bitmap acquire(int width, int height) {
+        ArrayDeque<Bitmap> bitmaps = bitmapsBySize.get(getKey(width, height));
+        Bitmap bitmap = (bitmaps == null) ? null : bitmaps.pollFirst();
+        if (bitmap != null) {
+            pooledBytes -= bitmap.getAllocationByteCount();
+        }
+
+        return bitmap;
+    }
+
+    /*
+     * The bitmap must not be drawn or read after it is released.
+     */
+    protected synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        int bytes = bitmap.getAllocationByteCount();
+        if (pooledBytes + bytes > maxPooledBytes) {
+            return;
+        }
+
+        Long key = getKey(bitmap.getWidth(), bitmap.getHeight());
+        ArrayDeque<Bitmap> bitmaps = bitmapsBySize.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            bitmapsBySize.put(key, bitmaps);
+        }
+        bitmaps.addFirst(bitmap);
+        pooledBytes += bytes;
+    }
+
+    protected synchronized void clear() {
+        bitmapsBySize.clear();
+        pooledBytes = 0;
+    }
+
+    //Decoders only sample by powers of two
+    private static int calculateInSampleSize(int width, int height, int requestedWidth, int requestedHeight) {
+        int sampleSize = 1;
+        if (requestedWidth > 0 && requestedHeight > 0) {
+            while ((width / (sampleSize * 2)) >= requestedWidth && (height / (sampleSize * 2)) >= requestedHeight) {
+                sampleSize *= 2;
+            }
+        }
+
+        return sampleSize;
+    }
+
+    private static Long getKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xFFFFFFFFL);
+    }
+}
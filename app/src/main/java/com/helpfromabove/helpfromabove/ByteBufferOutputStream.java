@@ -0,0 +1,47 @@
+package com.helpfromabove.helpfromabove;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a ByteBufferPool buffer, moving to a larger pooled buffer
+ * when it fills up. Call getBuffer once writing is done and release the
+ * buffer back to the pool when finished with it.
+ */
+
+public class ByteBufferOutputStream extends OutputStream {
+    private final ByteBufferPool pool;
+    private ByteBuffer buffer;
+
+    protected ByteBufferOutputStream(ByteBufferPool pool, int initialCapacity) {
+        this.pool = pool;
+        this.buffer = pool.acquire(initialCapacity);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    /*
+     * Returns the written bytes, from position 0 to the limit.
+     */
+    protected ByteBuffer getBuffer() {
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        return written;
+    }
+
+    private void ensureRemaining(int count) {
+        if (buffer.remaining() < count) {
+            buffer = pool.grow(buffer, buffer.position() + count);
+        }
+    }
+}
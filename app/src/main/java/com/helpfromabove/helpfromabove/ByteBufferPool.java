@@ -0,0 +1,108 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reusable ByteBuffers for encoded image frames, so fetching and storing
+ * a frame does not allocate new arrays every time.
+ * <p>
+ * Buffers are kept in buckets of power of two capacities, so a buffer
+ * can be reused by any frame that fits in it. The buffers are on the
+ * heap because BitmapFactory and the cloud uploader need their arrays.
+ * Only MAX_BUFFERS_PER_BUCKET buffers are kept per bucket, any more are
+ * left for the GC.
+ */
+
+public class ByteBufferPool {
+    private static final String TAG = "ByteBufferPool";
+
+    private static final int MIN_CAPACITY_SHIFT = 12;
+    private static final int MAX_CAPACITY_SHIFT = 24;
+    private static final int MAX_BUFFERS_PER_BUCKET = 4;
+
+    private static final ByteBufferPool instance = new ByteBufferPool();
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] buckets = new ArrayDeque[MAX_CAPACITY_SHIFT - MIN_CAPACITY_SHIFT + 1];
+
+    private ByteBufferPool() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayDeque<>(MAX_BUFFERS_PER_BUCKET);
+        }
+    }
+
+    //Shared by the UASCClient that fills frames and the CloudService that stores them
+    protected static ByteBufferPool getInstance() {
+        return instance;
+    }
+
+    /*
+     * Returns a cleared buffer with at least minCapacity bytes.
+     */
+    protected ByteBuffer acquire(int minCapacity) {
+        int bucket = getBucket(minCapacity);
+        if (bucket < 0) {
+            Log.w(TAG, "acquire: " + minCapacity + " bytes is too large to pool");
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        ByteBuffer buffer;
+        synchronized (buckets[bucket]) {
+            buffer = buckets[bucket].pollFirst();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << (bucket + MIN_CAPACITY_SHIFT));
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /*
+     * The buffer must not be used after it is released.
+     */
+    protected void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int bucket = getBucket(capacity);
+        if (bucket < 0 || !buffer.hasArray() || capacity != (1 << (bucket + MIN_CAPACITY_SHIFT))) {
+            //Not one of ours
+            return;
+        }
+
+        synchronized (buckets[bucket]) {
+            if (buckets[bucket].size() < MAX_BUFFERS_PER_BUCKET) {
+                buckets[bucket].addFirst(buffer);
+            }
+        }
+    }
+
+    /*
+     * Returns a buffer with at least minCapacity bytes holding the
+     * contents of buffer, and releases buffer.
+     */
+    protected ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        if (buffer.capacity() >= minCapacity) {
+            return buffer;
+        }
+
+        ByteBuffer larger = acquire(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        release(buffer);
+        return larger;
+    }
+
+    private static int getBucket(int capacity) {
+        int shift = MIN_CAPACITY_SHIFT;
+        while ((1 << shift) < capacity) {
+            shift++;
+            if (shift > MAX_CAPACITY_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_CAPACITY_SHIFT;
+    }
+}
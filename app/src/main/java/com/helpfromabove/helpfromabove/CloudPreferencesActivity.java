@@ -9,5 +9,11 @@ public class CloudPreferencesActivity extends HFAPreferenceActivity {
 
         this.addPreferencesFromResource(R.xml.pref_cloud);
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_cloud_storage_provider)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_image_size_cap)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_frame_dedup_distance)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_upload_concurrency)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_upload_batch_window)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_session_video)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_local_session_export)));
     }
 }
@@ -8,6 +8,7 @@ import android.graphics.Bitmap.CompressFormat;
 import android.os.Binder;
 import android.os.Environment;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -17,15 +18,23 @@ import com.cloudrail.si.interfaces.CloudStorage;
 import com.cloudrail.si.services.Dropbox;
 import com.cloudrail.si.services.OneDrive;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class CloudService extends Service {
@@ -41,43 +50,75 @@ public class CloudService extends Service {
     private static final String APP_FOLDER = "Help_From_Above";
     private static final String LOCAL_APP_FOLDER = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES) + "/" + APP_FOLDER;
     private static final String CLOUD_APP_FOLDER = "/" + APP_FOLDER;
+    //Frames of a cloud session are kept here until they are uploaded
+    private static final String SESSION_CACHE_FOLDER = "sessions";
+    private static final String SESSION_VIDEO_FILE_NAME = "session.avi";
+    //Uploading the session video as well doubles what a session uploads
+    private volatile boolean sessionVideoEnabled;
+    //What a local session's store is written out as, on exportPool
+    private static final int LOCAL_EXPORT_NONE = 0;
+    private static final int LOCAL_EXPORT_IMAGES = 1;
+    private static final int LOCAL_EXPORT_VIDEO = 2;
+    private static final int EXPORT_QUEUE_CAPACITY = 8;
+    private volatile int localSessionExport;
     private final IBinder mBinder = new CloudServiceBinder();
     private String sessionFolder;
+    //Every frame of the session, in sessionFolder when there is no cloud storage
+    private volatile SessionFrameStore sessionFrameStore;
+    //Which of the session's frames are in the cloud, null without cloud storage
+    private volatile UploadJournal uploadJournal;
+    //The cloud session's uploads still running, null without cloud storage
+    private volatile SessionUploads sessionUploads;
+    //Earlier sessions with uploads being resumed, so they are not resumed twice
+    private final Set<File> resumingDirectories = Collections.synchronizedSet(new HashSet<File>());
     private CompressFormat compressionFormat;
     private int compressionQuality;
+    //Frames are archived as the UASC sent them unless they are bigger than this, 0 is no cap
+    private int imageSizeCapBytes;
+    private static final int MIN_COMPRESSION_QUALITY = 20;
+    private static final int COMPRESSION_QUALITY_STEP = 15;
+    //Bounds for images re-encoded to keep uploads up with the frames
+    private static final int MIN_UPLOAD_QUALITY = 30;
+    private static final int MAX_UPLOAD_QUALITY = 90;
+    private static final int MAX_UPLOAD_SAMPLE_SIZE = 4;
+    private final UploadQualityController uploadQualityController = new UploadQualityController(MIN_UPLOAD_QUALITY, MAX_UPLOAD_QUALITY, MAX_UPLOAD_SAMPLE_SIZE);
+    //Images are uploaded on uploadPool, everything else runs in order on sessionTaskPool.
+    //Upload tasks hold no frames, the workers claim them from the session's store.
+    private static final int UPLOAD_QUEUE_CAPACITY = 64;
+    private static final int SESSION_TASK_QUEUE_CAPACITY = 8;
+    private static final long UPLOAD_DRAIN_TIMEOUT = 60000;
+    //A failed upload is tried again after UPLOAD_RETRY_DELAY, doubling each time
+    private static final int MAX_UPLOAD_ATTEMPTS = 4;
+    private static final long UPLOAD_RETRY_DELAY = 1000;
+    //With batching on, frames are uploaded in a zip per window or MAX_UPLOAD_BATCH_BYTES
+    private static final long MAX_UPLOAD_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final String UPLOAD_BATCH_FILE_PREFIX = "frames-";
+    private static final String UPLOAD_BATCH_FILE_EXTENSION = ".zip";
+    private volatile long uploadBatchWindow;
+    private volatile UploadWorkerPool uploadPool;
+    private UploadWorkerPool sessionTaskPool;
+    private UploadWorkerPool exportPool;
 
     //Read that this is thread safe and using it to check that all images have been uploaded.
     private AtomicInteger atomicImageUploadCount = new AtomicInteger(0);
 
     private CloudStorage cloudStorage;
 
-    private static byte[] convertBitmapToByteArray(Bitmap bitmap, CompressFormat format, int quality) {
-        byte[] byteArray;
-        if (bitmap == null) {
-            byteArray = null;
-        } else {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bitmap.compress(format, quality, bos);
-            byteArray = bos.toByteArray();
-        }
-
-        return byteArray;
-    }
-
-    private static ByteArrayInputStream convertDataToByteArrayInputStream(Bitmap bitmap, CompressFormat format, int quality) {
-        ByteArrayInputStream byteArrayInputStream;
-
+    /*
+     * Compresses the bitmap into a pooled buffer, returned from position 0
+     * to its limit. The caller must release the buffer to the pool.
+     */
+    private static ByteBuffer compressBitmap(Bitmap bitmap, CompressFormat format, int quality, int sizeHint) {
+        ByteBuffer buffer;
         if (bitmap == null || bitmap.getByteCount() == 0) {
-            byteArrayInputStream = null;
+            buffer = null;
         } else {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            bitmap.compress(format, quality, byteArrayOutputStream);
-
-            byte[] imageBytes = byteArrayOutputStream.toByteArray();
-            byteArrayInputStream = new ByteArrayInputStream(imageBytes);
+            ByteBufferOutputStream byteBufferOutputStream = new ByteBufferOutputStream(ByteBufferPool.getInstance(), sizeHint);
+            bitmap.compress(format, quality, byteBufferOutputStream);
+            buffer = byteBufferOutputStream.getBuffer();
         }
 
-        return byteArrayInputStream;
+        return buffer;
     }
 
     @Override
@@ -92,11 +133,19 @@ public class CloudService extends Service {
         super.onCreate();
 
         CloudRail.setAppKey(CLOUDRAIL_LICENSE_KEY);
+        sessionTaskPool = new UploadWorkerPool("Cloud_Session", 1, SESSION_TASK_QUEUE_CAPACITY);
+        exportPool = new UploadWorkerPool("Cloud_Export", 1, EXPORT_QUEUE_CAPACITY);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        sessionTaskPool.shutdown();
+        exportPool.shutdown();
+        if (uploadPool != null) {
+            uploadPool.shutdown();
+        }
+        closeSessionFrameStore();
     }
 
     @Override
@@ -147,16 +196,11 @@ public class CloudService extends Service {
     }
 
     private void createAppFolder() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (cloudStorage == null) {
-                    createLocalAppFolder();
-                } else {
-                    createCloudAppFolder();
-                }
-            }
-        }).start();
+        if (cloudStorage == null) {
+            createLocalAppFolder();
+        } else {
+            createCloudAppFolder();
+        }
     }
 
     private void createLocalAppFolder() {
@@ -175,27 +219,104 @@ public class CloudService extends Service {
     }
 
     protected void prepareSession() {
-        new Thread(new Runnable() {
+        sessionTaskPool.submit(new Runnable() {
             @Override
             public void run() {
                 atomicImageUploadCount = new AtomicInteger(0);
                 compressionFormat = CompressFormat.JPEG;
                 compressionQuality = 50;
+                uploadQualityController.reset();
+
+                SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+                imageSizeCapBytes = 1024 * Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_image_size_cap), getString(R.string.pref_value_image_size_cap_default)));
+                int uploadConcurrency = Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_upload_concurrency), getString(R.string.pref_value_upload_concurrency_default)));
+                setUploadConcurrency(uploadConcurrency);
+                uploadBatchWindow = 1000L * Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_upload_batch_window), getString(R.string.pref_value_upload_batch_window_default)));
+                sessionVideoEnabled = Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_session_video), getString(R.string.pref_value_session_video_default))) != 0;
+                localSessionExport = Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_local_session_export), getString(R.string.pref_value_local_session_export_default)));
 
                 initCloudStorage();
                 cloudStorageLogin();
                 createAppFolder();
                 CommandService.notifyCloudServicePrepared(getApplicationContext());
+                if (cloudStorage != null) {
+                    resumeUploads();
+                }
+                exportLocalSessions();
             }
-        }).start();
+        });
+    }
+
+    /*
+     * Replaces the upload pool if its concurrency has changed, once the
+     * old one has finished its uploads.
+     */
+    private void setUploadConcurrency(int concurrency) {
+        UploadWorkerPool oldPool = uploadPool;
+        if (oldPool != null && oldPool.getConcurrency() == concurrency) {
+            return;
+        }
+
+        uploadPool = new UploadWorkerPool("Cloud_Upload", concurrency, UPLOAD_QUEUE_CAPACITY);
+        uploadQualityController.setConcurrency(concurrency);
+        if (oldPool != null) {
+            oldPool.drain(UPLOAD_DRAIN_TIMEOUT);
+            oldPool.shutdown();
+        }
     }
 
     protected void startSession() {
         createSessionFolder();
     }
 
+    /*
+     * Closes the session's frame store. A cloud session is closed on the
+     * upload pool once its last frame is uploaded, so the next session
+     * does not wait on it, and its cached frames are deleted once every
+     * one of them is uploaded. A local session is written out as the
+     * local session export preference says, on exportPool.
+     */
+    protected void stopSession() {
+        final SessionUploads uploads;
+        final SessionFrameStore store;
+        synchronized (this) {
+            uploads = sessionUploads;
+            store = detachSessionFrameStore();
+        }
+        if (store == null) {
+            return;
+        }
+
+        sessionTaskPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (uploads == null) {
+                    closeLocalSession(store);
+                    return;
+                }
+
+                if (uploads.stop()) {
+                    //Nothing left to upload or being uploaded, the video still may be
+                    UploadWorkerPool pool = uploadPool;
+                    Runnable close = new Runnable() {
+                        @Override
+                        public void run() {
+                            closeSessionUploads(uploads);
+                        }
+                    };
+                    if (pool == null || !pool.submit(close)) {
+                        close.run();
+                    }
+                } else {
+                    //The last batch is ready now that the session has stopped
+                    requestUploads(uploads, true);
+                }
+            }
+        });
+    }
+
     private void createSessionFolder() {
-        new Thread(new Runnable() {
+        sessionTaskPool.submit(new Runnable() {
             @Override
             public void run() {
                 if (cloudStorage == null) {
@@ -204,7 +325,7 @@ public class CloudService extends Service {
                     createCloudSessionFolder();
                 }
             }
-        }).start();
+        });
     }
 
     private void createCloudSessionFolder() {
@@ -215,13 +336,441 @@ public class CloudService extends Service {
         } catch (com.cloudrail.si.exceptions.HttpException ex) {
             Log.e(TAG, ex.getMessage());
         }
+
+        openSessionFrameStore(new File(getSessionCacheFolder(), getDateTime()), sessionFolder);
     }
 
     private void createLocalSessionFolder() {
         sessionFolder = LOCAL_APP_FOLDER + "/" + getDateTime();
-        File directory = new File(sessionFolder);
-        if (!directory.mkdirs()) {
-            Log.e(TAG, "Could not make directories: " + sessionFolder);
+        openSessionFrameStore(new File(sessionFolder), null);
+    }
+
+    /*
+     * Frames are uploaded to cloudFolder, or not at all if it is null.
+     */
+    private synchronized void openSessionFrameStore(File directory, String cloudFolder) {
+        closeSessionFrameStore();
+        try {
+            sessionFrameStore = new SessionFrameStore(directory);
+            if (cloudFolder != null) {
+                uploadJournal = new UploadJournal(directory, cloudFolder);
+                UploadWorkerPool pool = uploadPool;
+                int maxRunners = (pool == null) ? 1 : pool.getConcurrency();
+                sessionUploads = new SessionUploads(sessionFrameStore, uploadJournal, uploadBatchWindow, MAX_UPLOAD_BATCH_BYTES,
+                        maxRunners, sessionVideoEnabled);
+            }
+        } catch (IOException iOE) {
+            Log.e(TAG, "openSessionFrameStore: IOException: " + iOE.getMessage(), iOE);
+        }
+    }
+
+    private synchronized void closeSessionFrameStore() {
+        if (sessionFrameStore != null) {
+            sessionFrameStore.close();
+            sessionFrameStore = null;
+        }
+        if (uploadJournal != null) {
+            uploadJournal.close();
+            uploadJournal = null;
+        }
+        sessionUploads = null;
+    }
+
+    /*
+     * Returns the store, the caller closes it and the upload journal.
+     */
+    private synchronized SessionFrameStore detachSessionFrameStore() {
+        SessionFrameStore store = sessionFrameStore;
+        sessionFrameStore = null;
+        uploadJournal = null;
+        sessionUploads = null;
+        return store;
+    }
+
+    /*
+     * Starts an UploadRunner for the session if it has frames waiting and
+     * fewer runners than it allows. Only a caller that mayBlock waits for
+     * room on the upload pool, storing a frame never does. If there is no
+     * room the frame is left for the runners already going.
+     */
+    private void requestUploads(SessionUploads uploads, boolean mayBlock) {
+        UploadWorkerPool pool = uploadPool;
+        if (pool == null || !uploads.startRunner()) {
+            return;
+        }
+
+        UploadRunner runner = new UploadRunner(uploads);
+        boolean queued = mayBlock ? pool.submit(runner) : pool.trySubmit(runner);
+        if (!queued && uploads.finishRunner()) {
+            closeSessionUploads(uploads);
+        }
+    }
+
+    /*
+     * Runs once the session has stopped and its last upload has finished.
+     * Uploads the session video if it is turned on and closes the session.
+     */
+    private void closeSessionUploads(SessionUploads uploads) {
+        UploadWorkerPool pool = uploadPool;
+        if (pool != null) {
+            Log.i(TAG, pool.getStats());
+        }
+        SessionFrameStore store = uploads.getStore();
+        if (uploads.isVideoUploaded() && cloudStorage != null) {
+            uploadSessionVideo(store, uploads.getJournal().getCloudFolder());
+        }
+        closeUploadedSession(store, uploads.getJournal());
+        resumingDirectories.remove(store.getDirectory());
+    }
+
+    /*
+     * Closes a cloud session's store and journal, and deletes them if
+     * every frame was uploaded. Otherwise they are kept for resumeUploads.
+     */
+    private void closeUploadedSession(SessionFrameStore store, UploadJournal journal) {
+        int pendingCount = store.getFrameCount() - journal.getUploadedCount();
+        store.close();
+        journal.close();
+        if (pendingCount <= 0) {
+            deleteRecursively(store.getDirectory());
+        } else {
+            Log.w(TAG, pendingCount + " frames not uploaded yet from " + store.getDirectory());
+        }
+    }
+
+    private void closeLocalSession(SessionFrameStore store) {
+        store.close();
+        submitLocalSessionExport(store.getDirectory());
+    }
+
+    /*
+     * Looks for local session stores that were never written out, either
+     * because the export was off or the app was killed first.
+     */
+    private void exportLocalSessions() {
+        File[] directories = new File(LOCAL_APP_FOLDER).listFiles();
+        if (directories == null) {
+            return;
+        }
+
+        for (File directory : directories) {
+            if (directory.isDirectory() && SessionFrameStore.exists(directory)) {
+                submitLocalSessionExport(directory);
+            }
+        }
+    }
+
+    /*
+     * Never waits for room on exportPool, a session that does not fit is
+     * exported the next time the service is prepared.
+     */
+    private void submitLocalSessionExport(final File directory) {
+        boolean queued = exportPool.trySubmit(new Runnable() {
+            @Override
+            public void run() {
+                exportLocalSession(directory);
+            }
+        });
+        if (!queued) {
+            Log.w(TAG, "Export queue full, leaving " + directory + " for later");
+        }
+    }
+
+    /*
+     * Opens the store again, which cuts down one left by a killed app,
+     * and writes its frames out where they can be seen outside the app,
+     * as image files named by the time they arrived or as one video. The
+     * store's own files are deleted once its frames are written out.
+     */
+    private void exportLocalSession(File directory) {
+        if (!SessionFrameStore.exists(directory) || directory.equals(getCurrentSessionDirectory())) {
+            return;
+        }
+
+        SessionFrameStore store;
+        try {
+            store = new SessionFrameStore(directory);
+        } catch (IOException iOE) {
+            Log.e(TAG, "exportLocalSession: IOException: " + iOE.getMessage(), iOE);
+            return;
+        }
+
+        boolean exported = false;
+        try {
+            switch (localSessionExport) {
+                case LOCAL_EXPORT_IMAGES:
+                    for (int i = 0; i < store.getFrameCount(); i++) {
+                        store.exportFrame(i, new File(directory, getImageFileName(store.getReceivedTime(i)) + getImageFileExtension()));
+                    }
+                    Log.i(TAG, "Exported " + store.getFrameCount() + " frames to " + directory);
+                    exported = true;
+                    break;
+                case LOCAL_EXPORT_VIDEO:
+                    exported = exportSessionVideo(store, new File(directory, SESSION_VIDEO_FILE_NAME));
+                    break;
+                case LOCAL_EXPORT_NONE:
+                default:
+                    break;
+            }
+        } catch (IOException iOE) {
+            Log.e(TAG, "exportLocalSession: IOException: " + iOE.getMessage(), iOE);
+        }
+
+        store.close();
+        if (exported) {
+            store.deleteFiles();
+        } else if (localSessionExport != LOCAL_EXPORT_NONE) {
+            CommandService.notifyErrorSavingLocalImage(getApplicationContext());
+        }
+    }
+
+    /*
+     * Uploads the frames of earlier cloud sessions that were not uploaded
+     * before the session stopped or the app was killed.
+     */
+    private void resumeUploads() {
+        File[] directories = getSessionCacheFolder().listFiles();
+        if (directories == null) {
+            return;
+        }
+
+        for (File directory : directories) {
+            if (!directory.isDirectory() || directory.equals(getCurrentSessionDirectory()) || resumingDirectories.contains(directory)) {
+                continue;
+            }
+            if (!UploadJournal.exists(directory)) {
+                deleteRecursively(directory);
+                continue;
+            }
+
+            UploadJournal journal;
+            try {
+                journal = UploadJournal.open(directory);
+            } catch (IOException iOE) {
+                //Without the cloud folder the frames can not be uploaded
+                Log.e(TAG, "resumeUploads: deleting " + directory + ": " + iOE.getMessage());
+                deleteRecursively(directory);
+                continue;
+            }
+
+            SessionFrameStore store = null;
+            try {
+                store = new SessionFrameStore(directory);
+                Log.i(TAG, "Resuming " + (store.getFrameCount() - journal.getUploadedCount()) + " uploads from " + directory);
+                resumingDirectories.add(directory);
+                //One runner at a time, so earlier sessions do not hold up this one's uploads
+                SessionUploads uploads = new SessionUploads(store, journal, uploadBatchWindow, MAX_UPLOAD_BATCH_BYTES, 1, false);
+                if (uploads.stop()) {
+                    closeSessionUploads(uploads);
+                } else {
+                    requestUploads(uploads, true);
+                }
+            } catch (IOException iOE) {
+                Log.e(TAG, "resumeUploads: IOException: " + iOE.getMessage(), iOE);
+                if (store != null) {
+                    store.close();
+                }
+                journal.close();
+            }
+        }
+    }
+
+    private File getCurrentSessionDirectory() {
+        SessionFrameStore store = sessionFrameStore;
+        return (store == null) ? null : store.getDirectory();
+    }
+
+    /*
+     * Uploads a frame from the store, trying again if it fails, and
+     * records it in the journal once it is uploaded. Frames that still
+     * fail are left in the journal for resumeUploads.
+     */
+    private void uploadStoredFrame(SessionFrameStore store, UploadJournal journal, int index) {
+        if (journal.isUploaded(index)) {
+            return;
+        }
+
+        //Uploaded straight from the store's mapping unless it is re-encoded
+        ByteBuffer imageBuffer;
+        try {
+            imageBuffer = store.readFrame(index);
+        } catch (IOException iOE) {
+            Log.e(TAG, "uploadStoredFrame: IOException: " + iOE.getMessage(), iOE);
+            return;
+        }
+
+        ByteBuffer uploadBuffer = compressForUpload(imageBuffer);
+        ByteBuffer buffer = (uploadBuffer != null) ? uploadBuffer : imageBuffer;
+        String path = journal.getCloudFolder() + "/" + getImageFileName(store.getReceivedTime(index)) + getImageFileExtension();
+
+        try {
+            if (uploadWithRetries(buffer, path, true)) {
+                journal.markUploaded(index);
+            } else {
+                Log.w(TAG, "Could not upload " + path + ", left for later");
+            }
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        } catch (IOException iOE) {
+            Log.e(TAG, "uploadStoredFrame: IOException: " + iOE.getMessage(), iOE);
+        } finally {
+            if (uploadBuffer != null) {
+                ByteBufferPool.getInstance().release(uploadBuffer);
+            }
+        }
+    }
+
+    /*
+     * Uploads the frames from start to end that are not uploaded yet as
+     * one zip, and records them in the journal once it is uploaded. The
+     * zip is streamed to a file next to the store and uploaded from a
+     * mapping of it, so the batch is never held in memory.
+     */
+    private void uploadStoredBatch(SessionFrameStore store, UploadJournal journal, int start, int end) {
+        int count = 0;
+        int[] indexes = new int[end - start];
+        for (int i = start; i < end; i++) {
+            if (!journal.isUploaded(i)) {
+                indexes[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (count < indexes.length) {
+            int[] pending = new int[count];
+            System.arraycopy(indexes, 0, pending, 0, count);
+            indexes = pending;
+        }
+
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = getImageFileName(store.getReceivedTime(indexes[i])) + getImageFileExtension();
+        }
+        String path = journal.getCloudFolder() + "/" + UPLOAD_BATCH_FILE_PREFIX
+                + getImageFileName(store.getReceivedTime(indexes[0])) + UPLOAD_BATCH_FILE_EXTENSION;
+
+        //Runners upload different frames, so the first index keeps the file to one runner
+        File zipFile = new File(store.getDirectory(), UPLOAD_BATCH_FILE_PREFIX + indexes[0] + UPLOAD_BATCH_FILE_EXTENSION);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(zipFile));
+            try {
+                SessionZipWriter.write(store, indexes, names, out);
+            } finally {
+                out.close();
+            }
+            ByteBuffer buffer = mapFile(zipFile);
+
+            //The upload size would throw off the per image quality
+            if (uploadWithRetries(buffer, path, false)) {
+                for (int index : indexes) {
+                    journal.markUploaded(index);
+                }
+            } else {
+                Log.w(TAG, "Could not upload " + path + ", left for later");
+            }
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        } catch (IOException iOE) {
+            Log.e(TAG, "uploadStoredBatch: IOException: " + iOE.getMessage(), iOE);
+        } finally {
+            deleteRecursively(zipFile);
+        }
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /*
+     * Tries the upload up to MAX_UPLOAD_ATTEMPTS times, waiting longer
+     * after each failure. Returns false if it still failed.
+     */
+    private boolean uploadWithRetries(ByteBuffer buffer, String path, boolean adaptQuality) throws InterruptedException {
+        boolean uploaded = false;
+        long retryDelay = UPLOAD_RETRY_DELAY;
+        for (int attempt = 0; attempt < MAX_UPLOAD_ATTEMPTS && !uploaded; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(retryDelay);
+                retryDelay *= 2;
+            }
+            long uploadStart = SystemClock.elapsedRealtime();
+            uploaded = saveCloudImage(buffer, path);
+            if (adaptQuality) {
+                uploadQualityController.onUploadComplete(buffer.remaining(), SystemClock.elapsedRealtime() - uploadStart, uploaded);
+            }
+        }
+
+        return uploaded;
+    }
+
+    private File getSessionCacheFolder() {
+        return new File(getCacheDir(), SESSION_CACHE_FOLDER);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    /*
+     * Writes the session's frames into one Motion JPEG AVI file, straight
+     * from the frame store without decoding them. Returns false if the
+     * video could not be written.
+     */
+    private boolean exportSessionVideo(SessionFrameStore store, File videoFile) {
+        try {
+            FileOutputStream fos = new FileOutputStream(videoFile);
+            try {
+                long length = MjpegAviWriter.write(store, fos.getChannel());
+                Log.i(TAG, "Exported " + store.getFrameCount() + " frames to " + videoFile + ", " + length + " bytes");
+            } finally {
+                fos.close();
+            }
+            return true;
+        } catch (IOException iOE) {
+            Log.e(TAG, "exportSessionVideo: IOException: " + iOE.getMessage(), iOE);
+            return false;
+        }
+    }
+
+    private void uploadSessionVideo(SessionFrameStore store, String cloudFolder) {
+        if (store.getFrameCount() == 0) {
+            return;
+        }
+
+        File videoFile = new File(store.getDirectory(), SESSION_VIDEO_FILE_NAME);
+        try {
+            if (!exportSessionVideo(store, videoFile)) {
+                return;
+            }
+
+            FileInputStream fis = new FileInputStream(videoFile);
+            try {
+                cloudStorage.upload(cloudFolder + "/" + SESSION_VIDEO_FILE_NAME, fis, videoFile.length(), true);
+            } finally {
+                fis.close();
+            }
+        } catch (com.cloudrail.si.exceptions.HttpException hE) {
+            Log.e(TAG, "uploadSessionVideo: HttpException: " + hE.getMessage());
+        } catch (IOException iOE) {
+            Log.e(TAG, "uploadSessionVideo: IOException: " + iOE.getMessage(), iOE);
+        } finally {
+            //The video is only written to be uploaded, or is cut short
+            deleteRecursively(videoFile);
         }
     }
 
@@ -248,65 +797,152 @@ public class CloudService extends Service {
         return atomicImageUploadCount.get();
     }
 
-    protected void saveImage(final Bitmap bitmap) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                String filename = getDateTime() + getImageFileExtension();
-                String path = sessionFolder + "/" + filename;
+    /*
+     * Stores the image locally, called from the archive stage of the
+     * frame pipeline. The upload workers are told there is a frame
+     * waiting, but this never waits on them, they read the image back
+     * from the session frame store.
+     */
+    protected void saveImage(final UasFrame frame) {
+        //Store the bytes the UASC sent, only re-encode to fit the size cap
+        ByteBuffer reencodedBuffer = null;
+        if (imageSizeCapBytes > 0 && frame.getEncodedLength() > imageSizeCapBytes) {
+            reencodedBuffer = compressToSizeCap(frame);
+        }
+        ByteBuffer imageBuffer = (reencodedBuffer != null) ? reencodedBuffer : frame.getEncodedBytes();
+
+        //Cloud sessions store their frames first, so uploads survive the app being killed
+        SessionUploads uploads;
+        int index;
+        synchronized (this) {
+            uploads = sessionUploads;
+            index = saveLocalImage(imageBuffer, frame.getReceivedTime());
+        }
 
-                if (cloudStorage == null) {
-                    saveLocalImage(bitmap, path);
-                } else {
-                    saveCloudImage(bitmap, path);
-                }
+        if (cloudStorage != null) {
+            if (index < 0 || uploads == null || uploads.isBatched()) {
+                //Counted now, a batch may wait on later frames and calibration should not
+                atomicImageUploadCount.getAndIncrement();
+            } else {
+                uploadQualityController.onFrame(frame.getReceivedTime());
             }
-        }).start();
-    }
+            if (index >= 0 && uploads != null) {
+                requestUploads(uploads, false);
+            }
+        }
 
-    private void saveLocalImage(Bitmap bitmap, final String path) {
-        try {
-            byte[] byteArray = convertBitmapToByteArray(bitmap, compressionFormat, compressionQuality);
+        if (reencodedBuffer != null) {
+            ByteBufferPool.getInstance().release(reencodedBuffer);
+        }
+    }
 
-            File file = new File(path);
+    //Parallel uploads can finish within the same second, so the name has milliseconds
+    private String getImageFileName(long time) {
+        DateFormat df = new SimpleDateFormat("yyyyMMddHHmmssSSSZZZ", Locale.getDefault());
+        return df.format(new Date(time));
+    }
 
-            if (file.createNewFile()) {
-                FileOutputStream fos = new FileOutputStream(file);
-                fos.write(byteArray);
-                fos.flush();
-                fos.close();
-            } else {
-                throw new IOException("Could not create new file " + path);
+    /*
+     * Lowers the quality until the image fits in imageSizeCapBytes or the
+     * quality reaches MIN_COMPRESSION_QUALITY.
+     */
+    private ByteBuffer compressToSizeCap(UasFrame frame) {
+        //The frame's Bitmap may be downsampled for display
+        Bitmap bitmap = frame.decodeBitmap(BitmapPool.getInstance(), 0, 0);
+        int sizeHint = frame.getEncodedLength();
+        ByteBuffer buffer = null;
+        for (int quality = compressionQuality; quality >= MIN_COMPRESSION_QUALITY; quality -= COMPRESSION_QUALITY_STEP) {
+            if (buffer != null) {
+                ByteBufferPool.getInstance().release(buffer);
             }
+            buffer = compressBitmap(bitmap, compressionFormat, quality, sizeHint);
+            if (buffer == null || buffer.remaining() <= imageSizeCapBytes) {
+                break;
+            }
+        }
+        BitmapPool.getInstance().release(bitmap);
+
+        return buffer;
+    }
+
+    /*
+     * Re-encodes the image at the UploadQualityController's quality and
+     * scale when imageBuffer is too big to upload before the next frame.
+     * Returns null if imageBuffer should be uploaded as it is, otherwise
+     * the caller must release the buffer to the pool.
+     */
+    private ByteBuffer compressForUpload(ByteBuffer imageBuffer) {
+        long targetBytes = uploadQualityController.getTargetBytes();
+        if (targetBytes < 0 || imageBuffer.remaining() <= targetBytes) {
+            return null;
+        }
+
+        //BitmapFactory needs an array, so a mapped frame is only copied to be re-encoded
+        ByteBuffer encodedBuffer = imageBuffer;
+        if (!imageBuffer.hasArray()) {
+            encodedBuffer = ByteBufferPool.getInstance().acquire(imageBuffer.remaining());
+            encodedBuffer.put(imageBuffer.duplicate());
+            encodedBuffer.flip();
+        }
+        Bitmap bitmap = BitmapPool.getInstance().decodeSampled(encodedBuffer.array(), encodedBuffer.arrayOffset() + encodedBuffer.position(),
+                encodedBuffer.remaining(), uploadQualityController.getSampleSize());
+        if (encodedBuffer != imageBuffer) {
+            ByteBufferPool.getInstance().release(encodedBuffer);
+        }
+        ByteBuffer buffer = compressBitmap(bitmap, CompressFormat.JPEG, uploadQualityController.getQuality(), (int) targetBytes);
+        if (bitmap != null) {
+            BitmapPool.getInstance().release(bitmap);
+        }
+        if (buffer != null && buffer.remaining() >= imageBuffer.remaining()) {
+            ByteBufferPool.getInstance().release(buffer);
+            buffer = null;
+        }
+
+        return buffer;
+    }
+
+    /*
+     * Returns the image's index in the session frame store, or -1 if it
+     * was not stored.
+     */
+    private synchronized int saveLocalImage(ByteBuffer imageBuffer, long receivedTime) {
+        if (sessionFrameStore == null) {
+            //Frames still in the pipeline when the session stops
+            Log.w(TAG, "saveLocalImage: no session frame store");
+            return -1;
+        }
+
+        try {
+            return sessionFrameStore.append(imageBuffer, receivedTime);
         } catch (IOException iOE) {
             Log.e(TAG, "saveLocalImage: IOException: " + iOE.getMessage(), iOE);
             CommandService.notifyErrorSavingLocalImage(getApplicationContext());
+            return -1;
         }
     }
 
-    private void saveCloudImage(Bitmap bitmap, final String path) {
-        ByteArrayInputStream byteArrayInputStream = convertDataToByteArrayInputStream(bitmap, compressionFormat, compressionQuality);
+    /*
+     * Returns false if the image could not be uploaded.
+     */
+    private boolean saveCloudImage(ByteBuffer imageBuffer, final String path) {
+        ByteBufferInputStream byteBufferInputStream = new ByteBufferInputStream(imageBuffer.duplicate());
+        boolean uploaded = true;
 
         try {
-            cloudStorage.upload(path, byteArrayInputStream, byteArrayInputStream.available(), false);
+            cloudStorage.upload(path, byteBufferInputStream, byteBufferInputStream.available(), false);
         } catch (com.cloudrail.si.exceptions.HttpException ex) {
+            uploaded = false;
             //Grabbing images as fast as once a second sometimes causes name
             //conflicts. This fixes those.
             if (ex.getMessage().contains("same name")) {
-                String pathB = path;
-                if (compressionFormat == CompressFormat.JPEG) {
-                    pathB = pathB.replace(".jpg", "");
-                    pathB = pathB + "-b.jpg";
-                } else if (compressionFormat == CompressFormat.PNG) {
-                    pathB = pathB.replace(".png", "");
-                    pathB = pathB + "-b.png";
-                }
-                saveCloudImage(bitmap, pathB);
+                //Images and batch zips both end in an extension
+                int extensionStart = path.lastIndexOf('.');
+                String pathB = path.substring(0, extensionStart) + "-b" + path.substring(extensionStart);
+                uploaded = saveCloudImage(imageBuffer, pathB);
             }
         }
 
-        //Same as <int>++
-        atomicImageUploadCount.getAndIncrement();
+        return uploaded;
     }
 
     protected String getSessionCloudLink() {
@@ -318,6 +954,58 @@ public class CloudService extends Service {
         return link;
     }
 
+    /*
+     * Uploads a session's waiting frames, one frame or batch each time it
+     * runs, and then queues itself again behind whatever else is waiting,
+     * so one session's backlog does not keep the others off the workers.
+     * If the queue is full it carries on where it is instead.
+     */
+    private class UploadRunner implements Runnable {
+        private final SessionUploads uploads;
+
+        private UploadRunner(SessionUploads uploads) {
+            this.uploads = uploads;
+        }
+
+        @Override
+        public void run() {
+            int[] range;
+            while (cloudStorage != null && !Thread.currentThread().isInterrupted() && (range = uploads.claim()) != null) {
+                upload(range[0], range[1]);
+                //The pool is replaced when its concurrency changes
+                UploadWorkerPool pool = uploadPool;
+                if (pool != null && pool.trySubmit(this)) {
+                    return;
+                }
+            }
+
+            if (uploads.finishRunner()) {
+                closeSessionUploads(uploads);
+            } else {
+                //Frames stored while this was finishing
+                requestUploads(uploads, false);
+            }
+        }
+
+        private void upload(int start, int end) {
+            SessionFrameStore store = uploads.getStore();
+            if (uploads.isBatched()) {
+                uploadStoredBatch(store, uploads.getJournal(), start, end);
+                return;
+            }
+
+            try {
+                uploadStoredFrame(store, uploads.getJournal(), start);
+            } finally {
+                //Frames of earlier sessions were never counted
+                if (!resumingDirectories.contains(store.getDirectory())) {
+                    //Same as <int>++
+                    atomicImageUploadCount.getAndIncrement();
+                }
+            }
+        }
+    }
+
     protected class CloudServiceBinder extends Binder {
         protected CloudService getService() {
             return CloudService.this;
@@ -7,16 +7,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.graphics.Bitmap;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by Caleb Smith on 5/13/2017.
  * <p>
@@ -41,6 +44,9 @@ public class CommandService extends Service {
     protected static final String ACTION_SESSION_EMERGENCY_MESSAGES_SENT = "com.helpfromabove.helpfromabove.action.ACTION_SESSION_EMERGENCY_MESSAGE_SENT";
     protected static final String ACTION_SESSION_EMERGENCY_MESSAGES_DELIVERED = "com.helpfromabove.helpfromabove.action.ACTION_SESSION_EMERGENCY_MESSAGE_DELIVERED";
 
+    //Sequence number of the frame an ACTION_NEW_UAS_IMAGE is about
+    protected static final String EXTRA_FRAME_SEQUENCE = "com.helpfromabove.helpfromabove.extra.EXTRA_FRAME_SEQUENCE";
+
     // Broadcasts for other services to use
     private static final String ACTION_WIFI_P2P_DISCONNECTED = "com.helpfromabove.helpfromabove.action.ACTION_WIFI_P2P_DISCONNECTED";
     private static final String ACTION_WIFI_P2P_CONNECTING_TO_UASC = "com.helpfromabove.helpfromabove.action.ACTION_WIFI_P2P_CONNECTING_TO_UASC";
@@ -68,7 +74,17 @@ public class CommandService extends Service {
     CloudService cloudService;
 
     private static boolean startAllSessions = false;
-    private static int receivedImagesCount = 0;
+    private static final AtomicInteger receivedImagesCount = new AtomicInteger(0);
+
+    //New frames go to the UI and the archive through bounded stages
+    private static final int UI_STAGE_CAPACITY = 2;
+    private static final int ARCHIVE_STAGE_CAPACITY = 16;
+    //A frame is archived at least this often even if it looks like the last one
+    private static final long DEDUP_MAX_SUPPRESSED_INTERVAL = 10000;
+    private static final int HISTORY_STAGE_CAPACITY = 4;
+    private FramePipeline framePipeline;
+    private final FrameHistory frameHistory = new FrameHistory(0);
+    private FrameDeduplicator frameDeduplicator;
 
     private CommandServiceBroadcastReceiver commandServiceBroadcastReceiver;
 
@@ -186,7 +202,6 @@ public class CommandService extends Service {
         intentFilter.addAction(ACTION_LOCATION_CALIBRATION_COMPLETE);
         intentFilter.addAction(ACTION_NEW_WAYPOINT);
         intentFilter.addAction(ACTION_NEW_UAS_LOCATION);
-        intentFilter.addAction(ACTION_NEW_UAS_IMAGE);
         commandServiceBroadcastReceiver = new CommandServiceBroadcastReceiver();
         registerReceiver(commandServiceBroadcastReceiver, intentFilter);
 
@@ -197,6 +212,7 @@ public class CommandService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
+        stopFramePipeline();
         stopServices();
         unregisterReceiver(commandServiceBroadcastReceiver);
     }
@@ -211,6 +227,18 @@ public class CommandService extends Service {
         return state;
     }
 
+    protected int getReceivedImagesCount() {
+        return receivedImagesCount.get();
+    }
+
+    /*
+     * How many frames were not archived because they looked the same as
+     * the one before.
+     */
+    protected long getSuppressedFramesCount() {
+        return (frameDeduplicator == null) ? 0 : frameDeduplicator.getSuppressedCount();
+    }
+
     private void startServices() {
         state.setServicesState(ServicesState.SERVICES_STARTING);
         startUasCommunicationService();
@@ -263,10 +291,88 @@ public class CommandService extends Service {
         }
 
         if ((uasCommunicationService != null) && (locationService != null) && (emergencyService != null) && (cloudService != null)) {
+            startFramePipeline();
             state.setServicesState(ServicesState.SERVICES_STARTED);
         }
     }
 
+    /*
+     * The UI only needs the newest frames, so the UI and history stages
+     * drop the oldest when they fall behind. Every frame must reach the
+     * archive, so it is deduplicated and stored on one stage that never
+     * drops. Storing a frame does not wait on uploads, so the archive can
+     * only hold back fetching if the local storage can not keep up.
+     */
+    private void startFramePipeline() {
+        if (framePipeline != null) {
+            return;
+        }
+
+        FrameStage uiStage = new FrameStage("ui", UI_STAGE_CAPACITY, FrameStage.DropPolicy.DROP_OLDEST, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                notifyNewUasImageAvailable(getApplicationContext(), frame.getSequence());
+                return true;
+            }
+        });
+        FrameStage historyStage = new FrameStage("history", HISTORY_STAGE_CAPACITY, FrameStage.DropPolicy.DROP_OLDEST, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                UasCommunicationService service = uasCommunicationService;
+                frameHistory.add(frame, (service == null) ? null : service.getNewUasLocation());
+                return true;
+            }
+        });
+        //Only frames that differ from the last one archived are archived
+        frameDeduplicator = new FrameDeduplicator(-1, DEDUP_MAX_SUPPRESSED_INTERVAL);
+        FrameStage archiveStage = new FrameStage("archive", ARCHIVE_STAGE_CAPACITY, FrameStage.DropPolicy.BLOCK, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                if (frameDeduplicator.isDuplicate(frame)) {
+                    return false;
+                }
+                receivedImagesCount.incrementAndGet();
+                CloudService service = cloudService;
+                if (service != null) {
+                    service.saveImage(frame);
+                }
+                return true;
+            }
+        });
+
+        updateFrameHistorySize();
+        updateFrameDeduplication();
+        //The blocking archive goes last so it can not hold frames back from the UI
+        framePipeline = new FramePipeline().addStage(uiStage).addStage(historyStage).addStage(archiveStage);
+        framePipeline.start();
+        uasCommunicationService.setFrameListener(new CommandServiceFrameListener());
+    }
+
+    private void stopFramePipeline() {
+        if (framePipeline != null) {
+            if (uasCommunicationService != null) {
+                uasCommunicationService.setFrameListener(null);
+            }
+            Log.i(TAG, "Frame pipeline: " + framePipeline.getStats());
+            Log.i(TAG, "Frame deduplication: " + frameDeduplicator.getStats());
+            framePipeline.shutdown();
+            framePipeline = null;
+        }
+        frameHistory.clear();
+    }
+
+    private void updateFrameHistorySize() {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        int maxMegabytes = Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_frame_history_size), getString(R.string.pref_value_frame_history_size_default)));
+        frameHistory.setMaxBytes(maxMegabytes * 1024L * 1024L);
+    }
+
+    private void updateFrameDeduplication() {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        int maxDistance = Integer.parseInt(sharedPref.getString(getString(R.string.pref_key_frame_dedup_distance), getString(R.string.pref_value_frame_dedup_distance_default)));
+        frameDeduplicator.setMaxDistance(maxDistance);
+    }
+
     private void stopServices() {
         unbindService(uasCommunicationServiceConnection);
         uasCommunicationService = null;
@@ -365,9 +471,8 @@ public class CommandService extends Service {
         context.sendBroadcast(new Intent(ACTION_NEW_UAS_LOCATION));
     }
 
-    protected static void notifyNewUasImageAvailable(Context context) {
-        receivedImagesCount++;
-        context.sendBroadcast(new Intent(ACTION_NEW_UAS_IMAGE));
+    protected static void notifyNewUasImageAvailable(Context context, long frameSequence) {
+        context.sendBroadcast(new Intent(ACTION_NEW_UAS_IMAGE).putExtra(EXTRA_FRAME_SEQUENCE, frameSequence));
     }
 
     protected static void notifyErrorSavingLocalImage(Context context) {
@@ -378,9 +483,35 @@ public class CommandService extends Service {
         context.sendBroadcast(new Intent(ACTION_SKIPPED_WIFI_CONNECTION));
     }
 
-    protected Bitmap getNewImage() {
+    protected void setUasImageVisible(boolean visible) {
+        if (uasCommunicationService != null) {
+            uasCommunicationService.setUasImageVisible(visible);
+        }
+    }
+
+    /*
+     * Images are decoded to cover this size, 0 for full resolution.
+     */
+    protected void setUasImageDisplaySize(int width, int height) {
+        if (uasCommunicationService != null) {
+            uasCommunicationService.setUasImageDisplaySize(width, height);
+        }
+    }
+
+    /*
+     * Returns the frame from an ACTION_NEW_UAS_IMAGE, or the newest one
+     * for FrameSlot.LATEST_SEQUENCE, or null if it is gone. The caller
+     * must release the frame once it is done with it.
+     */
+    protected UasFrame acquireFrame(long sequence) {
+        return uasCommunicationService.acquireFrame(sequence);
+    }
 
-        return uasCommunicationService.getNewImage();
+    /*
+     * The recent frames, for looking back at what was missed.
+     */
+    protected FrameHistory getFrameHistory() {
+        return frameHistory;
     }
 
     private void handleNewWaypoint() {
@@ -411,11 +542,15 @@ public class CommandService extends Service {
     }
 
     protected void handleCommandHhmdUasHeightUp() {
-        locationService.incrementHeightOffset();
+        if (!uasCommunicationService.foldAltitudeOffset(1)) {
+            locationService.incrementHeightOffset();
+        }
     }
 
     protected void handleCommandHhmdUasHeightDown() {
-        locationService.decrementHeightOffset();
+        if (!uasCommunicationService.foldAltitudeOffset(-1)) {
+            locationService.decrementHeightOffset();
+        }
     }
 
     protected void prepareSession() {
@@ -434,6 +569,13 @@ public class CommandService extends Service {
     protected void handleCommandHhmdSessionStart() {
         state.setSessionState(SessionState.SESSION_STARTING);
 
+        //Each session starts with an empty history, sized as set now
+        frameHistory.clear();
+        updateFrameHistorySize();
+        if (frameDeduplicator != null) {
+            updateFrameDeduplication();
+            frameDeduplicator.reset();
+        }
         cloudService.startSession();
         locationService.startSession();
     }
@@ -461,8 +603,8 @@ public class CommandService extends Service {
         locationService.onLocationCalibrationComplete();
 
         if (startAllSessions) {
-            if (receivedImagesCount == cloudService.getUploadCount()) {
-                receivedImagesCount = 0;
+            if (receivedImagesCount.get() == cloudService.getUploadCount()) {
+                receivedImagesCount.set(0);
                 uasCommunicationService.onLocationCalibrationComplete();
             }
         }
@@ -479,6 +621,10 @@ public class CommandService extends Service {
 
         uasCommunicationService.stopSession();
         locationService.stopSession();
+        cloudService.stopSession();
+        if (frameDeduplicator != null) {
+            Log.i(TAG, "Frame deduplication: " + frameDeduplicator.getStats());
+        }
 
         state.setSessionState(SessionState.SESSION_STOPPED);
     }
@@ -488,11 +634,6 @@ public class CommandService extends Service {
         locationService.pushUasLocation(uasLocation);
     }
 
-    private void handleNewUasImage() {
-        Bitmap bitmap = uasCommunicationService.getNewImage();
-        cloudService.saveImage(bitmap);
-    }
-
     private class CommandServiceBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -541,9 +682,6 @@ public class CommandService extends Service {
                     case ACTION_NEW_UAS_LOCATION:
                         handleNewUasLocation();
                         break;
-                    case ACTION_NEW_UAS_IMAGE:
-                        handleNewUasImage();
-                        break;
                     default:
                         Log.w(TAG, "onReceive: default: action=" + action);
                         break;
@@ -552,6 +690,16 @@ public class CommandService extends Service {
         }
     }
 
+    private class CommandServiceFrameListener implements UASCClient.FrameListener {
+        @Override
+        public void onNewFrame(UasFrame frame) {
+            FramePipeline pipeline = framePipeline;
+            if (pipeline != null) {
+                pipeline.submit(frame);
+            }
+        }
+    }
+
     class CommandServiceBinder extends Binder {
         CommandService getService() {
             return CommandService.this;
@@ -0,0 +1,130 @@
+package com.helpfromabove.helpfromabove;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds frames that look the same as the last frame kept, so a hovering
+ * UAS does not have every nearly identical frame stored and uploaded.
+ * <p>
+ * Each frame gets a 64 bit difference hash (dHash): the frame's Bitmap is
+ * shrunk to a 9 by 8 grid of luminance values, and each bit says whether
+ * a cell is brighter than the one to its right. Frames that look alike
+ * have hashes that differ in few bits, whatever their exact pixels or
+ * JPEG noise. A frame is a duplicate if its hash is at most maxDistance
+ * bits from the last kept frame's, but one frame is still kept at least
+ * every maxSuppressedInterval so the archive shows the UAS was there.
+ * <p>
+ * isDuplicate must only be called from one thread at a time.
+ */
+
+public class FrameDeduplicator {
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    //The Bitmap is shrunk to this many pixels per grid cell first and averaged
+    private static final int CELL_SIZE = 4;
+    private static final int SAMPLE_WIDTH = HASH_WIDTH * CELL_SIZE;
+    private static final int SAMPLE_HEIGHT = HASH_HEIGHT * CELL_SIZE;
+
+    private final Bitmap sampleBitmap = Bitmap.createBitmap(SAMPLE_WIDTH, SAMPLE_HEIGHT, Bitmap.Config.ARGB_8888);
+    private final Canvas sampleCanvas = new Canvas(sampleBitmap);
+    private final Paint samplePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect sampleRect = new Rect(0, 0, SAMPLE_WIDTH, SAMPLE_HEIGHT);
+    private final int[] samplePixels = new int[SAMPLE_WIDTH * SAMPLE_HEIGHT];
+    private final int[] luminance = new int[HASH_WIDTH * HASH_HEIGHT];
+
+    private volatile int maxDistance;
+    private volatile long maxSuppressedInterval;
+    private final AtomicLong keptCount = new AtomicLong(0);
+    private final AtomicLong suppressedCount = new AtomicLong(0);
+
+    private boolean hasKeptFrame = false;
+    private long lastKeptHash;
+    private long lastKeptTime;
+
+    /*
+     * A maxDistance less than 0 keeps every frame.
+     */
+    protected FrameDeduplicator(int maxDistance, long maxSuppressedInterval) {
+        this.maxDistance = maxDistance;
+        this.maxSuppressedInterval = maxSuppressedInterval;
+    }
+
+    protected void setMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /*
+     * Returns true if the frame should be skipped. Frames that are kept
+     * become the frame the next ones are compared with.
+     */
+    protected boolean isDuplicate(UasFrame frame) {
+        Bitmap bitmap = frame.getBitmap();
+        int distance = maxDistance;
+        if (distance < 0 || bitmap == null) {
+            keptCount.incrementAndGet();
+            return false;
+        }
+
+        long hash = getDifferenceHash(bitmap);
+        long time = frame.getReceivedTime();
+        if (hasKeptFrame && Long.bitCount(hash ^ lastKeptHash) <= distance && time - lastKeptTime < maxSuppressedInterval) {
+            suppressedCount.incrementAndGet();
+            return true;
+        }
+
+        hasKeptFrame = true;
+        lastKeptHash = hash;
+        lastKeptTime = time;
+        keptCount.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * The next frame is kept whatever it looks like.
+     */
+    protected void reset() {
+        hasKeptFrame = false;
+    }
+
+    protected long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    protected String getStats() {
+        return "kept=" + keptCount.get() + ", suppressed=" + suppressedCount.get();
+    }
+
+    private long getDifferenceHash(Bitmap bitmap) {
+        sampleCanvas.drawBitmap(bitmap, null, sampleRect, samplePaint);
+        sampleBitmap.getPixels(samplePixels, 0, SAMPLE_WIDTH, 0, 0, SAMPLE_WIDTH, SAMPLE_HEIGHT);
+
+        for (int cell = 0; cell < luminance.length; cell++) {
+            luminance[cell] = 0;
+        }
+        for (int y = 0; y < SAMPLE_HEIGHT; y++) {
+            for (int x = 0; x < SAMPLE_WIDTH; x++) {
+                int pixel = samplePixels[y * SAMPLE_WIDTH + x];
+                //Rec. 601 luma weights, out of 256
+                int luma = (77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF)) >> 8;
+                luminance[(y / CELL_SIZE) * HASH_WIDTH + (x / CELL_SIZE)] += luma;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luminance[y * HASH_WIDTH + x] > luminance[y * HASH_WIDTH + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,176 @@
+package com.helpfromabove.helpfromabove;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of the most recent frames from the UAS, kept as their encoded
+ * bytes with the time they arrived and where the UAS was, so the
+ * operator can look back at what was missed.
+ * <p>
+ * The ring holds at most MAX_FRAMES frames and at most maxBytes of
+ * encoded bytes, the oldest frames are dropped to make room. Frames are
+ * only decoded when they are looked at.
+ * <p>
+ * Frames are numbered in the order they were added. The numbers keep
+ * counting up as old frames are dropped, so a number always means the
+ * same frame, from getFirstIndex up to but not including getEndIndex.
+ */
+
+public class FrameHistory {
+    private static final int MAX_FRAMES = 600;
+
+    private final Entry[] entries = new Entry[MAX_FRAMES];
+    private long maxBytes;
+    private long bytes = 0;
+    private long firstIndex = 0;
+    private long endIndex = 0;
+
+    protected FrameHistory(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     * A maxBytes of 0 turns the history off.
+     */
+    protected synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    /*
+     * Copies the frame's encoded bytes into the history, so the frame is
+     * not kept. location is where the UAS was, or null if unknown.
+     */
+    protected void add(UasFrame frame, Location location) {
+        int length = frame.getEncodedLength();
+        synchronized (this) {
+            if (length > maxBytes) {
+                return;
+            }
+        }
+
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ByteBuffer encodedBytes = pool.acquire(length);
+        encodedBytes.put(frame.getEncodedBytes());
+        encodedBytes.flip();
+        Entry entry = new Entry(encodedBytes, frame.getReceivedTime(), (location == null) ? null : new Location(location));
+
+        synchronized (this) {
+            if (encodedBytes.capacity() > maxBytes) {
+                pool.release(encodedBytes);
+                return;
+            }
+            trimTo(maxBytes - encodedBytes.capacity());
+            if (endIndex - firstIndex == MAX_FRAMES) {
+                removeFirst();
+            }
+            entries[slot(endIndex)] = entry;
+            endIndex++;
+            bytes += encodedBytes.capacity();
+        }
+    }
+
+    protected synchronized long getFirstIndex() {
+        return firstIndex;
+    }
+
+    protected synchronized long getEndIndex() {
+        return endIndex;
+    }
+
+    protected synchronized int size() {
+        return (int) (endIndex - firstIndex);
+    }
+
+    /*
+     * Returns 0 if the frame is no longer in the history.
+     */
+    protected synchronized long getReceivedTime(long index) {
+        Entry entry = get(index);
+        return (entry == null) ? 0 : entry.receivedTime;
+    }
+
+    /*
+     * Returns null if the location is unknown or the frame is no longer
+     * in the history.
+     */
+    protected synchronized Location getUasLocation(long index) {
+        Entry entry = get(index);
+        return (entry == null || entry.uasLocation == null) ? null : new Location(entry.uasLocation);
+    }
+
+    /*
+     * Decodes the frame to cover requestedWidth by requestedHeight, 0 for
+     * full resolution. The caller must release the Bitmap to the pool.
+     * Returns null if the frame is no longer in the history.
+     * <p>
+     * The bytes are copied out so the decode does not hold up add.
+     */
+    protected Bitmap decode(long index, BitmapPool bitmapPool, int requestedWidth, int requestedHeight) {
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ByteBuffer encodedBytes;
+        synchronized (this) {
+            Entry entry = get(index);
+            if (entry == null) {
+                return null;
+            }
+
+            encodedBytes = pool.acquire(entry.encodedBytes.remaining());
+            encodedBytes.put(entry.encodedBytes.duplicate());
+            encodedBytes.flip();
+        }
+
+        try {
+            return bitmapPool.decode(encodedBytes.array(), encodedBytes.arrayOffset() + encodedBytes.position(),
+                    encodedBytes.remaining(), requestedWidth, requestedHeight);
+        } finally {
+            pool.release(encodedBytes);
+        }
+    }
+
+    protected synchronized void clear() {
+        trimTo(0);
+    }
+
+    private Entry get(long index) {
+        if (index < firstIndex || index >= endIndex) {
+            return null;
+        }
+
+        return entries[slot(index)];
+    }
+
+    private void trimTo(long targetBytes) {
+        while (bytes > targetBytes && firstIndex < endIndex) {
+            removeFirst();
+        }
+    }
+
+    private void removeFirst() {
+        int slot = slot(firstIndex);
+        Entry entry = entries[slot];
+        entries[slot] = null;
+        firstIndex++;
+        bytes -= entry.encodedBytes.capacity();
+        ByteBufferPool.getInstance().release(entry.encodedBytes);
+    }
+
+    private static int slot(long index) {
+        return (int) (index % MAX_FRAMES);
+    }
+
+    private static class Entry {
+        private final ByteBuffer encodedBytes;
+        private final long receivedTime;
+        private final Location uasLocation;
+
+        private Entry(ByteBuffer encodedBytes, long receivedTime, Location uasLocation) {
+            this.encodedBytes = encodedBytes;
+            this.receivedTime = receivedTime;
+            this.uasLocation = uasLocation;
+        }
+    }
+}
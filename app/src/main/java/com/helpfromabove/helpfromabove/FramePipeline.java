@@ -0,0 +1,69 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * The stages every frame from the UAS goes through after it is fetched,
+ * for example showing it in the UI and archiving it.
+ * <p>
+ * Submitted frames are offered to each first stage in the order they
+ * were added. Frames are submitted on the threads that fetch them, so a
+ * first stage that BLOCKs stalls fetching and everything else on those
+ * threads while it is full. Only a stage that must never lose a frame
+ * should BLOCK, it should do nothing slower than local storage, and it
+ * should be added last so it can not hold frames back from the others.
+ */
+
+public class FramePipeline {
+    private static final String TAG = "FramePipeline";
+
+    private final ArrayList<FrameStage> stages = new ArrayList<>();
+    private volatile boolean running = false;
+
+    protected FramePipeline addStage(FrameStage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    protected void start() {
+        for (FrameStage stage : stages) {
+            stage.start();
+        }
+        running = true;
+    }
+
+    /*
+     * Blocks while a first stage that BLOCKs is full. The caller keeps
+     * its reference to the frame.
+     */
+    protected void submit(UasFrame frame) {
+        if (!running) {
+            Log.w(TAG, "submit: pipeline is not running");
+            return;
+        }
+
+        for (FrameStage stage : stages) {
+            stage.offer(frame);
+        }
+    }
+
+    protected void shutdown() {
+        running = false;
+        for (FrameStage stage : stages) {
+            stage.shutdown();
+        }
+    }
+
+    protected String getStats() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (FrameStage stage : stages) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append("; ");
+            }
+            stringBuilder.append(stage.getStats());
+        }
+        return stringBuilder.toString();
+    }
+}
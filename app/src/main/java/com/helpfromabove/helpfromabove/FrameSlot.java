@@ -0,0 +1,81 @@
+package com.helpfromabove.helpfromabove;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands frames from the thread that fetches them to any number of
+ * readers without locks.
+ * <p>
+ * Every published frame gets the next sequence number and goes into a
+ * small ring of recent frames, so a reader that was notified about a
+ * frame gets exactly that frame even if newer ones have arrived since.
+ * The slot holds one reference to each frame in the ring and releases it
+ * when the frame is pushed out. A reader only gets a frame if it retains
+ * it before that happens, otherwise it gets null.
+ */
+
+public class FrameSlot {
+    //Pass to acquire for whichever frame is newest
+    protected static final long LATEST_SEQUENCE = -1;
+
+    private static final int RING_SIZE = 4;
+
+    private final AtomicReferenceArray<UasFrame> ring = new AtomicReferenceArray<>(RING_SIZE);
+    //Sequence numbers start at 1, 0 means nothing was published
+    private final AtomicLong latestSequence = new AtomicLong(0);
+
+    /*
+     * Takes over the caller's reference to the frame and returns the
+     * frame's sequence number.
+     */
+    protected long publish(UasFrame frame) {
+        long sequence = latestSequence.incrementAndGet();
+        frame.setSequence(sequence);
+
+        UasFrame displacedFrame = ring.getAndSet(getIndex(sequence), frame);
+        if (displacedFrame != null) {
+            displacedFrame.release();
+        }
+
+        return sequence;
+    }
+
+    /*
+     * Returns the frame with the given sequence number with a reference
+     * for the caller, who must release it. Returns null if that frame has
+     * already been pushed out of the ring.
+     */
+    protected UasFrame acquire(long sequence) {
+        if (sequence == LATEST_SEQUENCE) {
+            sequence = latestSequence.get();
+        }
+        if (sequence <= 0) {
+            return null;
+        }
+
+        UasFrame frame = ring.get(getIndex(sequence));
+        if (frame != null && frame.getSequence() == sequence && frame.tryRetain()) {
+            return frame;
+        }
+
+        return null;
+    }
+
+    protected long getLatestSequence() {
+        return latestSequence.get();
+    }
+
+    protected void clear() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            UasFrame frame = ring.getAndSet(i, null);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    private static int getIndex(long sequence) {
+        return (int) (sequence % RING_SIZE);
+    }
+}
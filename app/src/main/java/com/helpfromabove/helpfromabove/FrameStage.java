@@ -0,0 +1,196 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One step of a FramePipeline: a bounded queue of frames and a thread
+ * that runs a Processor on each of them in order.
+ * <p>
+ * What happens when the queue is full is the stage's DropPolicy:
+ * - DROP_OLDEST makes room by dropping the oldest queued frame, for
+ *   stages like the UI that only care about the newest frame,
+ * - DROP_NEWEST drops the frame being offered,
+ * - BLOCK makes whoever offers the frame wait for room, so frames are
+ *   never dropped and a slow stage slows down the stages before it.
+ * Frames the Processor passes on are offered to the downstream stages.
+ * Memory use is bounded by the queue capacities whatever the speed of
+ * the stages.
+ */
+
+public class FrameStage {
+    private static final String TAG = "FrameStage";
+
+    protected enum DropPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        BLOCK,
+    }
+
+    protected interface Processor {
+        /*
+         * Runs on the stage's thread. The frame is only valid until this
+         * returns unless it is retained. Returns true to pass the frame on
+         * to the downstream stages.
+         */
+        boolean process(UasFrame frame);
+    }
+
+    private final String name;
+    private final DropPolicy dropPolicy;
+    private final Processor processor;
+    private final ArrayBlockingQueue<UasFrame> queue;
+    private final ArrayList<FrameStage> downstreamStages = new ArrayList<>();
+    private final AtomicLong processedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    private Thread workerThread;
+    private volatile boolean running = false;
+
+    protected FrameStage(String name, int capacity, DropPolicy dropPolicy, Processor processor) {
+        this.name = name;
+        this.dropPolicy = dropPolicy;
+        this.processor = processor;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /*
+     * Must be called before the pipeline is started.
+     */
+    protected FrameStage addDownstream(FrameStage stage) {
+        downstreamStages.add(stage);
+        return this;
+    }
+
+    protected void start() {
+        running = true;
+        workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processFrames();
+            }
+        }, "Frame_Stage-" + name);
+        workerThread.start();
+
+        for (FrameStage stage : downstreamStages) {
+            stage.start();
+        }
+    }
+
+    /*
+     * Queues the frame with a reference of its own, the caller keeps its
+     * reference. Returns false if the frame was dropped.
+     */
+    protected boolean offer(UasFrame frame) {
+        if (!running) {
+            return false;
+        }
+
+        frame.retain();
+        switch (dropPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(frame);
+                    return checkQueued(frame);
+                } catch (InterruptedException iE) {
+                    Thread.currentThread().interrupt();
+                    drop(frame);
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(frame)) {
+                    UasFrame oldestFrame = queue.poll();
+                    if (oldestFrame != null) {
+                        drop(oldestFrame);
+                    }
+                }
+                return checkQueued(frame);
+            case DROP_NEWEST:
+            default:
+                if (queue.offer(frame)) {
+                    return checkQueued(frame);
+                }
+                drop(frame);
+                return false;
+        }
+    }
+
+    protected void shutdown() {
+        running = false;
+        if (workerThread != null) {
+            workerThread.interrupt();
+        }
+
+        UasFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.release();
+        }
+
+        for (FrameStage stage : downstreamStages) {
+            stage.shutdown();
+        }
+        Log.i(TAG, getStats());
+    }
+
+    protected int getQueueDepth() {
+        return queue.size();
+    }
+
+    protected long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    protected long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    protected String getStats() {
+        return name + ": processed=" + processedCount.get() + ", dropped=" + droppedCount.get() + ", queued=" + queue.size();
+    }
+
+    /*
+     * A frame queued after shutdown drained the queue would never be
+     * released, so it is taken back out if the stage has stopped.
+     */
+    private boolean checkQueued(UasFrame frame) {
+        if (!running && queue.remove(frame)) {
+            drop(frame);
+            return false;
+        }
+
+        return true;
+    }
+
+    private void drop(UasFrame frame) {
+        frame.release();
+        droppedCount.incrementAndGet();
+    }
+
+    private void processFrames() {
+        while (running) {
+            UasFrame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException iE) {
+                break;
+            }
+
+            try {
+                if (processor.process(frame)) {
+                    for (FrameStage stage : downstreamStages) {
+                        stage.offer(frame);
+                    }
+                }
+                processedCount.incrementAndGet();
+            } catch (RuntimeException rE) {
+                //Keep one bad frame from stopping the stage
+                Log.e(TAG, name + ": uncaught exception processing frame", rE);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+}
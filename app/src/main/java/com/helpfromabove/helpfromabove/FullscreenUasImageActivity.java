@@ -7,13 +7,22 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.graphics.Bitmap;
+import android.location.Location;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageView;
+import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.text.DateFormat;
+import java.util.Date;
+
 /**
  * Created by caleb on 5/9/17.
  * <p>
@@ -27,16 +36,34 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
 
     private CommandService commandService;
     private ServiceConnection commandServiceConnection;
+    private UasFrame displayedFrame;
+
+    //Index of the FrameHistory frame being shown, LIVE for the newest frames
+    private static final long LIVE = -1;
+    private long historyIndex = LIVE;
+    private Bitmap historyBitmap;
+    //History frames are decoded here, only the newest request is kept
+    private HandlerThread historyDecodeThread;
+    private Handler historyDecodeHandler;
+    private final Handler uiHandler = new Handler();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_fullscreen_uas_image);
+
+        SeekBar seekBar = (SeekBar) findViewById(R.id.fullscreen_history_seek_bar);
+        if (seekBar != null) {
+            seekBar.setOnSeekBarChangeListener(new HistorySeekBarChangeListener());
+        }
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        historyDecodeThread = new HandlerThread("History_Decode");
+        historyDecodeThread.start();
+        historyDecodeHandler = new Handler(historyDecodeThread.getLooper());
         bindCommandService();
     }
 
@@ -48,17 +75,37 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
         intentFilter.addAction(CommandService.ACTION_NEW_UAS_IMAGE);
         intentFilter.addAction(CommandService.ERROR_SAVING_LOCAL_IMAGE);
         registerReceiver(fullscreenUasImageBroadcastReceiver, intentFilter);
+
+        if (commandService != null) {
+            commandService.setUasImageVisible(true);
+            //Fullscreen shows images at full resolution
+            commandService.setUasImageDisplaySize(0, 0);
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        if (commandService != null) {
+            commandService.setUasImageVisible(false);
+        }
         unregisterReceiver(fullscreenUasImageBroadcastReceiver);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        ImageView imageView = (ImageView) findViewById(R.id.fullscreen_uas_image_view);
+        if (imageView != null) {
+            imageView.setImageResource(R.drawable.image_placeholder);
+        }
+        setDisplayedFrame(null);
+        historyIndex = LIVE;
+        setHistoryBitmap(null);
+        //A decode still running posts its Bitmap after this, which releases it
+        historyDecodeHandler.removeCallbacksAndMessages(null);
+        historyDecodeThread.quitSafely();
+        historyDecodeThread = null;
         unbindCommandService();
     }
 
@@ -74,7 +121,12 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
     }
 
     private void updateImageView() {
-        if (commandService != null) {
+        updateImageView(FrameSlot.LATEST_SEQUENCE);
+    }
+
+    private void updateImageView(long frameSequence) {
+        updateHistorySeekBar();
+        if (commandService != null && historyIndex == LIVE) {
             CommandService.SessionState sessionState = commandService.getState().getSessionState();
             ImageView imageView = (ImageView) findViewById(R.id.fullscreen_uas_image_view);
             if ((sessionState != null) && (imageView != null)) {
@@ -85,13 +137,15 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
                     case SESSION_STOPPED:
                     case SESSION_STOPPING:
                         imageView.setImageResource(R.drawable.image_placeholder);
+                        setDisplayedFrame(null);
                         break;
                     case SESSION_RUNNING:
                     case SESSION_EMERGENCY_STARTED:
                     case SESSION_EMERGENCY_END:
-                        Bitmap bitmap = commandService.getNewImage();
-                        if (bitmap != null) {
-                            imageView.setImageBitmap(bitmap);
+                        UasFrame frame = commandService.acquireFrame(frameSequence);
+                        if (frame != null) {
+                            imageView.setImageBitmap(frame.getBitmap());
+                            setDisplayedFrame(frame);
                         }
                         break;
                     default:
@@ -101,6 +155,119 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
         }
     }
 
+    /*
+     * Keeps a reference to the frame the ImageView is drawing, so its
+     * Bitmap is not reused until the next frame replaces it.
+     */
+    private void setDisplayedFrame(UasFrame frame) {
+        if (displayedFrame != null) {
+            displayedFrame.release();
+        }
+        displayedFrame = frame;
+    }
+
+    private void setHistoryBitmap(Bitmap bitmap) {
+        if (historyBitmap != null) {
+            BitmapPool.getInstance().release(historyBitmap);
+        }
+        historyBitmap = bitmap;
+    }
+
+    /*
+     * The last position of the SeekBar is the live image, the ones before
+     * it are the frames in the FrameHistory, oldest first.
+     */
+    private void updateHistorySeekBar() {
+        SeekBar seekBar = (SeekBar) findViewById(R.id.fullscreen_history_seek_bar);
+        if (commandService == null || seekBar == null) {
+            return;
+        }
+
+        FrameHistory frameHistory = commandService.getFrameHistory();
+        long firstIndex = frameHistory.getFirstIndex();
+        int size = (int) (frameHistory.getEndIndex() - firstIndex);
+        seekBar.setVisibility(size > 1 ? View.VISIBLE : View.GONE);
+        seekBar.setMax(Math.max(size - 1, 0));
+        if (historyIndex == LIVE) {
+            seekBar.setProgress(seekBar.getMax());
+        } else {
+            //The frame being shown may have been dropped from the history
+            seekBar.setProgress((int) Math.max(historyIndex - firstIndex, 0));
+        }
+    }
+
+    private void showHistoryFrame(int position) {
+        ImageView imageView = (ImageView) findViewById(R.id.fullscreen_uas_image_view);
+        TextView infoTextView = (TextView) findViewById(R.id.fullscreen_history_info_text_view);
+        if (commandService == null || imageView == null || infoTextView == null) {
+            return;
+        }
+
+        final FrameHistory frameHistory = commandService.getFrameHistory();
+        historyDecodeHandler.removeCallbacksAndMessages(null);
+        if (position >= frameHistory.size() - 1) {
+            historyIndex = LIVE;
+            infoTextView.setVisibility(View.GONE);
+            updateImageView();
+            if (displayedFrame == null) {
+                //No live frame yet, the history Bitmap must not be drawn once released
+                imageView.setImageResource(R.drawable.image_placeholder);
+            }
+            setHistoryBitmap(null);
+            return;
+        }
+
+        final long index = frameHistory.getFirstIndex() + position;
+        if (frameHistory.getReceivedTime(index) == 0) {
+            return;
+        }
+        historyIndex = index;
+
+        //Decoding is too slow for the UI thread while the SeekBar is dragged
+        final int width = imageView.getWidth();
+        final int height = imageView.getHeight();
+        historyDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = frameHistory.decode(index, BitmapPool.getInstance(), width, height);
+                if (bitmap != null) {
+                    uiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            showHistoryBitmap(index, bitmap);
+                        }
+                    });
+                }
+            }
+        });
+
+        String time = DateFormat.getTimeInstance().format(new Date(frameHistory.getReceivedTime(index)));
+        Location uasLocation = frameHistory.getUasLocation(index);
+        if (uasLocation != null) {
+            infoTextView.setText(getString(R.string.fullscreen_history_frame_info, time, uasLocation.getLatitude(), uasLocation.getLongitude()));
+        } else {
+            infoTextView.setText(time);
+        }
+        infoTextView.setVisibility(View.VISIBLE);
+    }
+
+    /*
+     * Shows the decoded history frame if it is still the one wanted,
+     * otherwise releases it.
+     */
+    private void showHistoryBitmap(long index, Bitmap bitmap) {
+        ImageView imageView = (ImageView) findViewById(R.id.fullscreen_uas_image_view);
+        if (historyIndex != index || historyDecodeThread == null || imageView == null) {
+            BitmapPool.getInstance().release(bitmap);
+            return;
+        }
+
+        //The old Bitmap is only released once the ImageView has the new one
+        imageView.setImageBitmap(bitmap);
+        setHistoryBitmap(bitmap);
+        setDisplayedFrame(null);
+    }
+
     private void handleErrorSavingLocalImage() {
         Toast.makeText(getApplicationContext(), R.string.error_saving_local_image, Toast.LENGTH_LONG).show();
     }
@@ -112,10 +279,29 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
         }
     }
 
+    private class HistorySeekBarChangeListener implements SeekBar.OnSeekBarChangeListener {
+        @Override
+        public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            if (fromUser) {
+                showHistoryFrame(progress);
+            }
+        }
+
+        @Override
+        public void onStartTrackingTouch(SeekBar seekBar) {
+        }
+
+        @Override
+        public void onStopTrackingTouch(SeekBar seekBar) {
+        }
+    }
+
     private class FullscreenUasImageActivityServiceConnection implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             setConnectedService(service);
+            commandService.setUasImageVisible(true);
+            commandService.setUasImageDisplaySize(0, 0);
             updateImageView();
         }
 
@@ -135,7 +321,7 @@ public class FullscreenUasImageActivity extends AppCompatActivity {
             if (action != null) {
                 switch (action) {
                     case CommandService.ACTION_NEW_UAS_IMAGE:
-                        updateImageView();
+                        updateImageView(intent.getLongExtra(CommandService.EXTRA_FRAME_SEQUENCE, FrameSlot.LATEST_SEQUENCE));
                         break;
                     case CommandService.ERROR_SAVING_LOCAL_IMAGE:
                         handleErrorSavingLocalImage();
@@ -8,7 +8,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -42,6 +41,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
 
     private CommandService commandService;
     private ServiceConnection commandServiceConnection;
+    private UasFrame displayedFrame;
 
     private AlertDialog calibratingAlertDialog;
     private Button endSessionButton;
@@ -89,18 +89,30 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         intentFilter.addAction(CommandService.ERROR_SAVING_LOCAL_IMAGE);
         registerReceiver(mainActivityBroadcastReceiver, intentFilter);
 
+        if (commandService != null) {
+            commandService.setUasImageVisible(true);
+            setUasImageDisplaySize();
+        }
         updateUiState();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        if (commandService != null) {
+            commandService.setUasImageVisible(false);
+        }
         unregisterReceiver(mainActivityBroadcastReceiver);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        ImageView imageView = (ImageView) findViewById(R.id.uas_image_view);
+        if (imageView != null) {
+            imageView.setImageResource(R.drawable.image_placeholder);
+        }
+        setDisplayedFrame(null);
         unbindCommandService();
     }
 
@@ -308,6 +320,10 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     }
 
     private void updateImageView() {
+        updateImageView(FrameSlot.LATEST_SEQUENCE);
+    }
+
+    private void updateImageView(long frameSequence) {
         if (commandService != null) {
             CommandService.SessionState sessionState = commandService.getState().getSessionState();
             ImageView imageView = (ImageView) findViewById(R.id.uas_image_view);
@@ -320,13 +336,15 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                     case SESSION_STOPPED:
                     case SESSION_STOPPING:
                         imageView.setImageResource(R.drawable.image_placeholder);
+                        setDisplayedFrame(null);
                         break;
                     case SESSION_RUNNING:
                     case SESSION_EMERGENCY_STARTED:
                     case SESSION_EMERGENCY_END:
-                        Bitmap bitmap = commandService.getNewImage();
-                        if (bitmap != null) {
-                            imageView.setImageBitmap(bitmap);
+                        UasFrame frame = commandService.acquireFrame(frameSequence);
+                        if (frame != null) {
+                            imageView.setImageBitmap(frame.getBitmap());
+                            setDisplayedFrame(frame);
                         }
                         break;
                     default:
@@ -336,6 +354,35 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         }
     }
 
+    /*
+     * The main screen only needs images as big as its ImageView, which
+     * only has a size once it has been laid out.
+     */
+    private void setUasImageDisplaySize() {
+        final ImageView imageView = (ImageView) findViewById(R.id.uas_image_view);
+        if (imageView != null) {
+            imageView.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (commandService != null) {
+                        commandService.setUasImageDisplaySize(imageView.getWidth(), imageView.getHeight());
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Keeps a reference to the frame the ImageView is drawing, so its
+     * Bitmap is not reused until the next frame replaces it.
+     */
+    private void setDisplayedFrame(UasFrame frame) {
+        if (displayedFrame != null) {
+            displayedFrame.release();
+        }
+        displayedFrame = frame;
+    }
+
     private void prepareSessionIfNotPrepared() {
         CommandService.SessionState sessionState = commandService.getState().getSessionState();
         switch (sessionState) {
@@ -406,6 +453,17 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         Toast.makeText(getApplicationContext(), R.string.emergency_message_delivered_text, Toast.LENGTH_LONG).show();
     }
 
+    /*
+     * Only from the broadcast, so the counts show once when the session
+     * stops and not every time the activity binds to the service.
+     */
+    private void displaySessionFrameCountsIfStopped() {
+        if (commandService != null && commandService.getState().getSessionState() == CommandService.SessionState.SESSION_STOPPED) {
+            String text = getString(R.string.session_frame_counts_text, commandService.getReceivedImagesCount(), commandService.getSuppressedFramesCount());
+            Toast.makeText(getApplicationContext(), text, Toast.LENGTH_LONG).show();
+        }
+    }
+
     private void displaySettingsDisabled() {
         Toast.makeText(getApplicationContext(), R.string.settings_disabled, Toast.LENGTH_LONG).show();
     }
@@ -421,6 +479,8 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             setConnectedService(service);
+            commandService.setUasImageVisible(true);
+            setUasImageDisplaySize();
             updateUiState();
             prepareSessionIfNotPrepared();
         }
@@ -443,6 +503,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 switch (action) {
                     case CommandService.ACTION_SESSION_STATE_CHANGED:
                         handleSessionStateChanged();
+                        displaySessionFrameCountsIfStopped();
                         break;
                     case CommandService.ACTION_LOCATION_STATE_CHANGED:
                         handleLocationStateChanged();
@@ -454,7 +515,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                         displayEmergencyMessagesDelivered();
                         break;
                     case CommandService.ACTION_NEW_UAS_IMAGE:
-                        updateImageView();
+                        updateImageView(intent.getLongExtra(CommandService.EXTRA_FRAME_SEQUENCE, FrameSlot.LATEST_SEQUENCE));
                         break;
                     case CommandService.ERROR_SAVING_LOCAL_IMAGE:
                         handleErrorSavingLocalImage();
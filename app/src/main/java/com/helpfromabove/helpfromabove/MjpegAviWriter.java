@@ -0,0 +1,232 @@
+package com.helpfromabove.helpfromabove;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the frames of a SessionFrameStore as one Motion JPEG AVI video.
+ * <p>
+ * An AVI of JPEGs holds every frame's bytes as they are, so nothing is
+ * decoded or encoded. The frame sizes in the store's index are all that
+ * is needed to work out the headers and the idx1 index before any frame
+ * is written, so the video is written front to back in one pass, using
+ * the same small buffer whatever the length of the session.
+ * <p>
+ * AVI plays frames at a fixed rate, so the rate is the session's average.
+ * Plain AVI files are limited to 4 GB.
+ */
+
+public class MjpegAviWriter {
+    private static final long MAX_AVI_LENGTH = 0xFFFFFFFFL;
+    private static final int MAIN_HEADER_LENGTH = 56;
+    private static final int STREAM_HEADER_LENGTH = 56;
+    private static final int STREAM_FORMAT_LENGTH = 40;
+    private static final int INDEX_ENTRY_LENGTH = 16;
+    //LIST size 'strl' strh size <strh> strf size <strf>
+    private static final int STREAM_LIST_LENGTH = 4 + 8 + STREAM_HEADER_LENGTH + 8 + STREAM_FORMAT_LENGTH;
+    //LIST size 'hdrl' avih size <avih> <strl list>
+    private static final int HEADER_LIST_LENGTH = 4 + 8 + MAIN_HEADER_LENGTH + 8 + STREAM_LIST_LENGTH;
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final long DEFAULT_MICROSECONDS_PER_FRAME = 1000000;
+    private static final int HEADER_LENGTH = 12 + 8 + HEADER_LIST_LENGTH + 12;
+
+    private MjpegAviWriter() {
+    }
+
+    /*
+     * Returns how long the video of the store's frames will be in bytes.
+     */
+    protected static long getLength(SessionFrameStore store) {
+        return 8 + getRiffLength(store, store.getFrameCount());
+    }
+
+    /*
+     * Writes the video of the frames in the store when this is called.
+     * Returns the number of bytes written.
+     */
+    protected static long write(SessionFrameStore store, WritableByteChannel channel) throws IOException {
+        int frameCount = store.getFrameCount();
+        if (frameCount == 0) {
+            throw new IOException("No frames to write");
+        }
+        long riffLength = getRiffLength(store, frameCount);
+        if (riffLength + 8 > MAX_AVI_LENGTH) {
+            throw new IOException("Session is too long for an AVI: " + (riffLength + 8) + " bytes");
+        }
+
+        int maxFrameLength = 0;
+        for (int i = 0; i < frameCount; i++) {
+            maxFrameLength = Math.max(maxFrameLength, store.getFrameLength(i));
+        }
+        int[] size = getJpegSize(store.readFrame(0));
+        int width = size[0];
+        int height = size[1];
+        long microsecondsPerFrame = getMicrosecondsPerFrame(store, frameCount);
+        long moviLength = getMoviLength(store, frameCount);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCc(buffer, "RIFF").putInt((int) riffLength);
+        putFourCc(buffer, "AVI ");
+
+        putFourCc(buffer, "LIST").putInt(HEADER_LIST_LENGTH);
+        putFourCc(buffer, "hdrl");
+        putFourCc(buffer, "avih").putInt(MAIN_HEADER_LENGTH);
+        buffer.putInt((int) microsecondsPerFrame);
+        buffer.putInt((int) Math.min(Integer.MAX_VALUE, maxFrameLength * 1000000L / microsecondsPerFrame));
+        buffer.putInt(0);
+        buffer.putInt(AVIF_HASINDEX);
+        buffer.putInt(frameCount);
+        buffer.putInt(0);
+        buffer.putInt(1);
+        buffer.putInt(maxFrameLength);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        putFourCc(buffer, "LIST").putInt(STREAM_LIST_LENGTH);
+        putFourCc(buffer, "strl");
+        putFourCc(buffer, "strh").putInt(STREAM_HEADER_LENGTH);
+        putFourCc(buffer, "vids");
+        putFourCc(buffer, "MJPG");
+        buffer.putInt(0);
+        buffer.putShort((short) 0).putShort((short) 0);
+        buffer.putInt(0);
+        buffer.putInt((int) microsecondsPerFrame);
+        buffer.putInt(1000000);
+        buffer.putInt(0);
+        buffer.putInt(frameCount);
+        buffer.putInt(maxFrameLength);
+        buffer.putInt(-1);
+        buffer.putInt(0);
+        buffer.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+        putFourCc(buffer, "strf").putInt(STREAM_FORMAT_LENGTH);
+        buffer.putInt(STREAM_FORMAT_LENGTH);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 24);
+        putFourCc(buffer, "MJPG");
+        buffer.putInt(width * height * 3);
+        buffer.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        putFourCc(buffer, "LIST").putInt((int) moviLength);
+        putFourCc(buffer, "movi");
+        buffer.flip();
+        long written = writeFully(buffer, channel);
+
+        //Each frame is a '00dc' chunk, padded to an even length
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer padding = ByteBuffer.allocate(1);
+        for (int i = 0; i < frameCount; i++) {
+            ByteBuffer frame = store.readFrame(i);
+            int length = frame.remaining();
+            chunkHeader.clear();
+            putFourCc(chunkHeader, "00dc").putInt(length);
+            chunkHeader.flip();
+            written += writeFully(chunkHeader, channel);
+            written += writeFully(frame, channel);
+            if ((length & 1) != 0) {
+                padding.rewind();
+                written += writeFully(padding, channel);
+            }
+        }
+
+        //idx1 offsets are from the 'movi' fourcc
+        ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCc(indexEntry, "idx1").putInt(frameCount * INDEX_ENTRY_LENGTH);
+        indexEntry.flip();
+        written += writeFully(indexEntry, channel);
+        long offset = 4;
+        for (int i = 0; i < frameCount; i++) {
+            int length = store.getFrameLength(i);
+            indexEntry.clear();
+            putFourCc(indexEntry, "00dc");
+            indexEntry.putInt(AVIIF_KEYFRAME);
+            indexEntry.putInt((int) offset);
+            indexEntry.putInt(length);
+            indexEntry.flip();
+            written += writeFully(indexEntry, channel);
+            offset += 8 + padded(length);
+        }
+
+        return written;
+    }
+
+    private static long getMoviLength(SessionFrameStore store, int frameCount) {
+        long length = 4;
+        for (int i = 0; i < frameCount; i++) {
+            length += 8 + padded(store.getFrameLength(i));
+        }
+
+        return length;
+    }
+
+    private static long getRiffLength(SessionFrameStore store, int frameCount) {
+        return 4 + 8 + HEADER_LIST_LENGTH + 8 + getMoviLength(store, frameCount) + 8 + (long) frameCount * INDEX_ENTRY_LENGTH;
+    }
+
+    private static long getMicrosecondsPerFrame(SessionFrameStore store, int frameCount) {
+        long duration = store.getReceivedTime(frameCount - 1) - store.getReceivedTime(0);
+        if (frameCount < 2 || duration <= 0) {
+            return DEFAULT_MICROSECONDS_PER_FRAME;
+        }
+
+        return Math.max(1, duration * 1000 / (frameCount - 1));
+    }
+
+    private static long padded(int length) {
+        return length + (length & 1);
+    }
+
+    private static ByteBuffer putFourCc(ByteBuffer buffer, String fourCc) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) fourCc.charAt(i));
+        }
+
+        return buffer;
+    }
+
+    /*
+     * Writes the buffer from its position to its limit, so callers flip
+     * the buffers they filled first.
+     */
+    private static long writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+
+        return written;
+    }
+
+    /*
+     * Reads the width and height from the JPEG's start of frame marker,
+     * without decoding it. Returns {0, 0} if there is none.
+     */
+    private static int[] getJpegSize(ByteBuffer jpeg) {
+        ByteBuffer data = jpeg.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int position = data.position() + 2;
+        while (position + 9 <= data.limit()) {
+            if ((data.get(position) & 0xFF) != 0xFF) {
+                break;
+            }
+            int marker = data.get(position + 1) & 0xFF;
+            if (marker == 0xFF) {
+                position++;
+                continue;
+            }
+            //SOF0 to SOF15, apart from DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = data.getShort(position + 5) & 0xFFFF;
+                int width = data.getShort(position + 7) & 0xFFFF;
+                return new int[]{width, height};
+            }
+            position += 2 + (data.getShort(position + 2) & 0xFFFF);
+        }
+
+        return new int[]{0, 0};
+    }
+}
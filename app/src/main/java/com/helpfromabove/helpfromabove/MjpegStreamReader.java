@@ -0,0 +1,246 @@
+package com.helpfromabove.helpfromabove;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Reads JPEG frames out of a multipart/x-mixed-replace (MJPEG) response.
+ * <p>
+ * Each part is expected to start with the boundary line followed by its
+ * headers. When a part has a Content-Length header it is read directly,
+ * otherwise the part is read up to the JPEG end of image marker. Without
+ * a length the JPEG's marker segments are walked and skipped whole, so
+ * an end of image marker inside an EXIF or JFIF thumbnail does not end
+ * the frame early. Frames are read into buffers from the ByteBufferPool.
+ */
+
+public class MjpegStreamReader {
+    private static final String MULTIPART_CONTENT_TYPE = "multipart/x-mixed-replace";
+    private static final String BOUNDARY_PARAMETER = "boundary=";
+    private static final String CONTENT_LENGTH_HEADER = "content-length:";
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+    private static final int INITIAL_FRAME_CAPACITY = 64 * 1024;
+    //JPEG markers, each follows a 0xFF byte
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_TEM = 0x01;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+
+    private final InputStream inputStream;
+    private final String boundaryLine;
+    private final ByteBufferPool pool;
+    //The frame being read up to its end of image marker
+    private ByteBuffer frame;
+
+    protected MjpegStreamReader(InputStream inputStream, String boundary, ByteBufferPool pool) {
+        this.inputStream = new BufferedInputStream(inputStream);
+        this.boundaryLine = boundary.startsWith("--") ? boundary : "--" + boundary;
+        this.pool = pool;
+    }
+
+    /*
+     * Returns the boundary of a multipart/x-mixed-replace content type,
+     * or null if the content type is not an MJPEG stream.
+     */
+    protected static String parseBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith(MULTIPART_CONTENT_TYPE)) {
+            return null;
+        }
+
+        int index = contentType.indexOf(BOUNDARY_PARAMETER);
+        if (index < 0) {
+            return null;
+        }
+
+        String boundary = contentType.substring(index + BOUNDARY_PARAMETER.length()).trim();
+        int end = boundary.indexOf(';');
+        if (end >= 0) {
+            boundary = boundary.substring(0, end).trim();
+        }
+        if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+
+        return boundary.isEmpty() ? null : boundary;
+    }
+
+    /*
+     * Blocks until the next complete frame has been read. Returns null
+     * when the UASC ends the stream. The frame is from position 0 to the
+     * limit of a pooled buffer, which the caller must release to the pool.
+     */
+    protected ByteBuffer readFrame() throws IOException {
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (!line.startsWith(boundaryLine));
+
+        int contentLength = -1;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            if (line.toLowerCase(Locale.US).startsWith(CONTENT_LENGTH_HEADER)) {
+                try {
+                    contentLength = Integer.parseInt(line.substring(CONTENT_LENGTH_HEADER.length()).trim());
+                } catch (NumberFormatException nFE) {
+                    contentLength = -1;
+                }
+            }
+        }
+        if (line == null) {
+            return null;
+        }
+
+        if (contentLength > MAX_FRAME_LENGTH) {
+            throw new IOException("MJPEG frame too large: " + contentLength);
+        }
+
+        return (contentLength >= 0) ? readFully(contentLength) : readToEndOfImage();
+    }
+
+    protected void close() throws IOException {
+        inputStream.close();
+    }
+
+    private ByteBuffer readFully(int length) throws IOException {
+        ByteBuffer frame = pool.acquire(length);
+        try {
+            while (frame.position() < length) {
+                int count = inputStream.read(frame.array(), frame.arrayOffset() + frame.position(), length - frame.position());
+                if (count < 0) {
+                    pool.release(frame);
+                    return null;
+                }
+                frame.position(frame.position() + count);
+            }
+        } catch (IOException iOE) {
+            pool.release(frame);
+            throw iOE;
+        }
+
+        frame.flip();
+        return frame;
+    }
+
+    /*
+     * Outside a scan every marker but the standalone ones is followed by
+     * the length of its segment, which is skipped. Inside a scan a 0xFF
+     * data byte is always followed by 0x00, and restart markers carry on
+     * the scan, so any other marker ends it.
+     */
+    private ByteBuffer readToEndOfImage() throws IOException {
+        frame = pool.acquire(INITIAL_FRAME_CAPACITY);
+        try {
+            skipToStartOfImage();
+            boolean inScan = false;
+            while (true) {
+                if (readFrameByte() != 0xFF) {
+                    if (inScan) {
+                        continue;
+                    }
+                    throw new IOException("MJPEG frame has no marker where one should be");
+                }
+
+                int marker;
+                do {
+                    //Any number of 0xFF fill bytes can come before a marker
+                    marker = readFrameByte();
+                } while (marker == 0xFF);
+
+                if (marker == 0x00 || (marker >= MARKER_RST0 && marker <= MARKER_RST7)) {
+                    if (inScan) {
+                        continue;
+                    }
+                    throw new IOException("MJPEG frame has a scan marker outside a scan");
+                }
+                if (marker == MARKER_EOI) {
+                    ByteBuffer endedFrame = frame;
+                    frame = null;
+                    endedFrame.flip();
+                    return endedFrame;
+                }
+                if (marker == MARKER_TEM) {
+                    continue;
+                }
+
+                int length = (readFrameByte() << 8) | readFrameByte();
+                if (length < 2) {
+                    throw new IOException("MJPEG frame has a bad segment length: " + length);
+                }
+                for (int i = 2; i < length; i++) {
+                    readFrameByte();
+                }
+                inScan = (marker == MARKER_SOS);
+            }
+        } catch (EOFException eOFE) {
+            return null;
+        } finally {
+            if (frame != null) {
+                pool.release(frame);
+                frame = null;
+            }
+        }
+    }
+
+    //Skips up to a line of anything before the start of image marker
+    private void skipToStartOfImage() throws IOException {
+        int previous = -1;
+        int current;
+        for (int skipped = 0; (current = inputStream.read()) >= 0; skipped++) {
+            if (previous == 0xFF && current == MARKER_SOI) {
+                frame.put((byte) 0xFF).put((byte) MARKER_SOI);
+                return;
+            }
+            if (skipped >= MAX_LINE_LENGTH) {
+                throw new IOException("MJPEG part is not a JPEG");
+            }
+            previous = current;
+        }
+
+        throw new EOFException();
+    }
+
+    //Reads the next byte of the frame into it
+    private int readFrameByte() throws IOException {
+        int current = inputStream.read();
+        if (current < 0) {
+            throw new EOFException();
+        }
+        if (!frame.hasRemaining()) {
+            if (frame.capacity() >= MAX_FRAME_LENGTH) {
+                throw new IOException("MJPEG frame has no end of image marker");
+            }
+            frame = pool.grow(frame, frame.capacity() + 1);
+        }
+        frame.put((byte) current);
+        return current;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder stringBuilder = new StringBuilder();
+        int current;
+        while ((current = inputStream.read()) >= 0) {
+            if (current == '\n') {
+                int length = stringBuilder.length();
+                if (length > 0 && stringBuilder.charAt(length - 1) == '\r') {
+                    stringBuilder.setLength(length - 1);
+                }
+                return stringBuilder.toString();
+            }
+            if (stringBuilder.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("MJPEG header line too long");
+            }
+            stringBuilder.append((char) current);
+        }
+
+        return null;
+    }
+}
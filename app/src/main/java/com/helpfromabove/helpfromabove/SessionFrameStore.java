@@ -0,0 +1,307 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Stores a session's frames locally in a few large files instead of one
+ * file per frame.
+ * <p>
+ * Frames are appended to segment files, frames-0000.seg, frames-0001.seg
+ * and so on, that are memory mapped SEGMENT_SIZE bytes at a time, so an
+ * append is a copy into memory. A new segment is started when a frame
+ * does not fit in the current one, and each segment is cut down to what
+ * was written once it is done.
+ * <p>
+ * frames.idx has one INDEX_RECORD_LENGTH record per frame: the segment,
+ * the offset in it, the length and the time the frame arrived. The index
+ * is kept in memory too, so any frame can be read back without a search,
+ * and is read back in when a session's store is opened again. A store
+ * left open by a killed app is cut down to its indexed frames then.
+ */
+
+public class SessionFrameStore {
+    private static final String TAG = "SessionFrameStore";
+
+    private static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+    private static final String INDEX_FILE_NAME = "frames.idx";
+    private static final String SEGMENT_FILE_FORMAT = "frames-%04d.seg";
+    //segment:4 offset:4 length:4 receivedTime:8
+    private static final int INDEX_RECORD_LENGTH = 20;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final File directory;
+    private final FileChannel indexChannel;
+    private final ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_RECORD_LENGTH);
+
+    //The index, one entry per frame
+    private int[] frameSegments = new int[INITIAL_INDEX_CAPACITY];
+    private int[] frameOffsets = new int[INITIAL_INDEX_CAPACITY];
+    private int[] frameLengths = new int[INITIAL_INDEX_CAPACITY];
+    private long[] frameReceivedTimes = new long[INITIAL_INDEX_CAPACITY];
+    private int frameCount = 0;
+
+    //Segments read back, by segment number, mapped when first read
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    private RandomAccessFile writeSegmentFile;
+    private MappedByteBuffer writeSegment;
+    private int writeSegmentNumber = -1;
+
+    /*
+     * Opens the store in the directory, reading in any frames already in
+     * it, so appending carries on after them.
+     */
+    protected SessionFrameStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not make directories: " + directory);
+        }
+
+        indexChannel = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw").getChannel();
+        readIndex();
+        trimSegments();
+    }
+
+    /*
+     * Returns true if the directory holds a store, closed or not.
+     */
+    protected static boolean exists(File directory) {
+        return new File(directory, INDEX_FILE_NAME).isFile();
+    }
+
+    /*
+     * Appends the frame between the buffer's position and limit, without
+     * changing the buffer's position. Returns the index of the frame.
+     */
+    protected synchronized int append(ByteBuffer encodedBytes, long receivedTime) throws IOException {
+        int length = encodedBytes.remaining();
+        if (length > SEGMENT_SIZE) {
+            throw new IOException("Frame of " + length + " bytes is larger than a segment");
+        }
+        if (writeSegment == null || writeSegment.remaining() < length) {
+            startSegment(writeSegmentNumber + 1);
+        }
+
+        int offset = writeSegment.position();
+        writeSegment.put(encodedBytes.duplicate());
+
+        indexRecord.clear();
+        indexRecord.putInt(writeSegmentNumber).putInt(offset).putInt(length).putLong(receivedTime);
+        indexRecord.flip();
+        while (indexRecord.hasRemaining()) {
+            indexChannel.write(indexRecord);
+        }
+
+        return addToIndex(writeSegmentNumber, offset, length, receivedTime);
+    }
+
+    protected File getDirectory() {
+        return directory;
+    }
+
+    protected synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    protected synchronized int getFrameLength(int index) {
+        checkIndex(index);
+        return frameLengths[index];
+    }
+
+    protected synchronized long getReceivedTime(int index) {
+        checkIndex(index);
+        return frameReceivedTimes[index];
+    }
+
+    /*
+     * Returns a read only view of the frame's encoded bytes in the mapped
+     * segment, valid until the store is closed. Segments are only ever cut
+     * down past their last frame, so appending does not end the view.
+     */
+    protected synchronized ByteBuffer readFrame(int index) throws IOException {
+        checkIndex(index);
+
+        ByteBuffer segment = getSegment(frameSegments[index]).duplicate();
+        segment.position(frameOffsets[index]);
+        segment.limit(frameOffsets[index] + frameLengths[index]);
+        return segment.slice().asReadOnlyBuffer();
+    }
+
+    /*
+     * Writes the frame's encoded bytes to a file of its own.
+     */
+    protected void exportFrame(int index, File file) throws IOException {
+        ByteBuffer frame = readFrame(index);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel fileChannel = fos.getChannel();
+            while (frame.hasRemaining()) {
+                fileChannel.write(frame);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /*
+     * Cuts the last segment down to what was written and closes the
+     * files. The store can not be used after this.
+     */
+    protected synchronized void close() {
+        try {
+            finishSegment();
+            indexChannel.force(false);
+            indexChannel.close();
+        } catch (IOException iOE) {
+            Log.e(TAG, "close: IOException: " + iOE.getMessage(), iOE);
+        }
+        segments.clear();
+    }
+
+    /*
+     * Deletes the store's index and segment files once it is closed,
+     * leaving anything else in the directory.
+     */
+    protected synchronized void deleteFiles() {
+        for (int i = 0; i <= writeSegmentNumber; i++) {
+            deleteFile(getSegmentFile(i));
+        }
+        deleteFile(new File(directory, INDEX_FILE_NAME));
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    private void readIndex() throws IOException {
+        //A record cut short by a crash is dropped
+        long recordCount = indexChannel.size() / INDEX_RECORD_LENGTH;
+        ByteBuffer index = ByteBuffer.allocate((int) (recordCount * INDEX_RECORD_LENGTH));
+        indexChannel.position(0);
+        while (index.hasRemaining() && indexChannel.read(index) >= 0) {
+            //Keep reading
+        }
+        index.flip();
+
+        while (index.remaining() >= INDEX_RECORD_LENGTH) {
+            int segment = index.getInt();
+            addToIndex(segment, index.getInt(), index.getInt(), index.getLong());
+            writeSegmentNumber = Math.max(writeSegmentNumber, segment);
+        }
+        indexChannel.truncate(recordCount * INDEX_RECORD_LENGTH);
+        indexChannel.position(recordCount * INDEX_RECORD_LENGTH);
+    }
+
+    /*
+     * A killed app leaves the last segment at SEGMENT_SIZE, and maybe a
+     * segment started without a frame indexed in it. The first is cut
+     * down to its last indexed frame and the second deleted.
+     */
+    private void trimSegments() throws IOException {
+        deleteFile(getSegmentFile(writeSegmentNumber + 1));
+        if (writeSegmentNumber < 0) {
+            return;
+        }
+
+        long end = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if (frameSegments[i] == writeSegmentNumber) {
+                end = Math.max(end, (long) frameOffsets[i] + frameLengths[i]);
+            }
+        }
+        File file = getSegmentFile(writeSegmentNumber);
+        if (file.length() <= end) {
+            return;
+        }
+        Log.i(TAG, "Trimming " + file + " to " + end + " bytes");
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+        try {
+            segmentFile.setLength(end);
+        } finally {
+            segmentFile.close();
+        }
+    }
+
+    private int addToIndex(int segment, int offset, int length, long receivedTime) {
+        if (frameCount == frameSegments.length) {
+            int capacity = frameCount * 2;
+            frameSegments = Arrays.copyOf(frameSegments, capacity);
+            frameOffsets = Arrays.copyOf(frameOffsets, capacity);
+            frameLengths = Arrays.copyOf(frameLengths, capacity);
+            frameReceivedTimes = Arrays.copyOf(frameReceivedTimes, capacity);
+        }
+
+        frameSegments[frameCount] = segment;
+        frameOffsets[frameCount] = offset;
+        frameLengths[frameCount] = length;
+        frameReceivedTimes[frameCount] = receivedTime;
+        return frameCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+        }
+    }
+
+    private void startSegment(int segmentNumber) throws IOException {
+        finishSegment();
+
+        writeSegmentFile = new RandomAccessFile(getSegmentFile(segmentNumber), "rw");
+        writeSegment = writeSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        writeSegmentNumber = segmentNumber;
+    }
+
+    private void finishSegment() throws IOException {
+        if (writeSegment == null) {
+            return;
+        }
+
+        int length = writeSegment.position();
+        writeSegment.force();
+        //Frames in the segment are read back from a new, read only mapping
+        writeSegment = null;
+        writeSegmentFile.setLength(length);
+        writeSegmentFile.close();
+        writeSegmentFile = null;
+    }
+
+    private ByteBuffer getSegment(int segmentNumber) throws IOException {
+        if (segmentNumber == writeSegmentNumber && writeSegment != null) {
+            return writeSegment;
+        }
+
+        while (segments.size() <= segmentNumber) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(segmentNumber);
+        if (segment == null) {
+            RandomAccessFile segmentFile = new RandomAccessFile(getSegmentFile(segmentNumber), "r");
+            try {
+                FileChannel segmentChannel = segmentFile.getChannel();
+                segment = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+            } finally {
+                segmentFile.close();
+            }
+            segments.set(segmentNumber, segment);
+        }
+
+        return segment;
+    }
+
+    private File getSegmentFile(int segmentNumber) {
+        return new File(directory, String.format(Locale.US, SEGMENT_FILE_FORMAT, segmentNumber));
+    }
+}
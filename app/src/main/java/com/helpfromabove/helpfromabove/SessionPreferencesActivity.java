@@ -9,5 +9,6 @@ public class SessionPreferencesActivity extends HFAPreferenceActivity {
 
         this.addPreferencesFromResource(R.xml.pref_session_start);
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_uas_start_height)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_frame_history_size)));
     }
 }
@@ -0,0 +1,141 @@
+package com.helpfromabove.helpfromabove;
+
+/**
+ * Hands out a cloud session's stored frames that are not in its upload
+ * journal yet, to the upload workers, one frame or one batch at a time.
+ * <p>
+ * Frames are only ever appended to the store, so the session just keeps
+ * the index of the first frame no worker has claimed. Storing a frame
+ * never waits on the upload workers, they come back for the frames that
+ * are waiting whenever they are free.
+ * <p>
+ * At most maxRunners workers take frames from a session at once, and the
+ * session counts them. Once the session has stopped, every frame has been
+ * claimed and the last worker is done, exactly one caller is told to
+ * close it.
+ */
+
+public class SessionUploads {
+    private final SessionFrameStore store;
+    private final UploadJournal journal;
+    //0 uploads frames one at a time, otherwise in batches per window
+    private final long batchWindow;
+    private final long maxBatchBytes;
+    private final int maxRunners;
+    private final boolean uploadVideo;
+
+    //Guarded by this
+    private int nextIndex = 0;
+    private int runners = 0;
+    private boolean stopped = false;
+    private boolean closed = false;
+
+    protected SessionUploads(SessionFrameStore store, UploadJournal journal, long batchWindow, long maxBatchBytes,
+                             int maxRunners, boolean uploadVideo) {
+        this.store = store;
+        this.journal = journal;
+        this.batchWindow = batchWindow;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxRunners = maxRunners;
+        this.uploadVideo = uploadVideo;
+    }
+
+    protected SessionFrameStore getStore() {
+        return store;
+    }
+
+    protected UploadJournal getJournal() {
+        return journal;
+    }
+
+    protected boolean isBatched() {
+        return batchWindow > 0;
+    }
+
+    protected boolean isVideoUploaded() {
+        return uploadVideo;
+    }
+
+    /*
+     * Claims the next frames to upload, from start to end, as {start, end}.
+     * Returns null if there is nothing to upload yet. A batch is only
+     * claimed once it spans the window or maxBatchBytes, or the session
+     * has stopped.
+     */
+    protected synchronized int[] claim() {
+        int end = getClaimEnd();
+        if (end < 0) {
+            return null;
+        }
+
+        int[] range = {nextIndex, end};
+        nextIndex = end;
+        return range;
+    }
+
+    /*
+     * Counts a worker in if there is something for it to claim and fewer
+     * than maxRunners are taking frames. Returns false if it should not
+     * run.
+     */
+    protected synchronized boolean startRunner() {
+        if (closed || runners >= maxRunners || getClaimEnd() < 0) {
+            return false;
+        }
+
+        runners++;
+        return true;
+    }
+
+    /*
+     * Counts a worker out. Returns true if the caller should close the
+     * session.
+     */
+    protected synchronized boolean finishRunner() {
+        runners--;
+        return shouldClose();
+    }
+
+    /*
+     * No more frames will be stored. Returns true if the caller should
+     * close the session.
+     */
+    protected synchronized boolean stop() {
+        stopped = true;
+        return shouldClose();
+    }
+
+    private boolean shouldClose() {
+        if (closed || !stopped || runners > 0 || getClaimEnd() >= 0) {
+            return false;
+        }
+
+        closed = true;
+        return true;
+    }
+
+    //Returns where the next claim ends, or -1 if there is nothing to claim
+    private int getClaimEnd() {
+        int frameCount = store.getFrameCount();
+        while (nextIndex < frameCount && journal.isUploaded(nextIndex)) {
+            nextIndex++;
+        }
+        if (nextIndex >= frameCount) {
+            return -1;
+        }
+        if (batchWindow <= 0) {
+            return nextIndex + 1;
+        }
+
+        int end = nextIndex;
+        long bytes = 0;
+        while (end < frameCount && bytes < maxBatchBytes) {
+            bytes += store.getFrameLength(end);
+            end++;
+        }
+        boolean full = bytes >= maxBatchBytes;
+        boolean windowPassed = store.getReceivedTime(frameCount - 1) - store.getReceivedTime(nextIndex) >= batchWindow;
+
+        return (stopped || full || windowPassed) ? end : -1;
+    }
+}
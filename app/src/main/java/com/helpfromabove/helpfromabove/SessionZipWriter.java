@@ -0,0 +1,96 @@
+package com.helpfromabove.helpfromabove;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes frames of a SessionFrameStore into one zip, so a batch of frames
+ * can be uploaded as one object instead of one upload per frame.
+ * <p>
+ * JPEGs get no smaller when deflated, so the frames are stored as they
+ * are. The zip ends with MANIFEST_FILE_NAME, a CSV file with the name,
+ * received time and length of each frame, in the order they arrived.
+ * <p>
+ * Frames are streamed from the store through one pooled CHUNK_SIZE
+ * buffer, so writing a batch does not hold a copy of it in memory.
+ */
+
+public class SessionZipWriter {
+    protected static final String MANIFEST_FILE_NAME = "manifest.csv";
+    private static final String MANIFEST_HEADER = "name,receivedTime,length\n";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private SessionZipWriter() {
+    }
+
+    /*
+     * Writes the frames at indexes, named names, and then the manifest.
+     * The stream is not closed.
+     */
+    protected static void write(SessionFrameStore store, int[] indexes, String[] names, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        CRC32 crc = new CRC32();
+        StringBuilder manifest = new StringBuilder(MANIFEST_HEADER);
+        ByteBuffer chunk = ByteBufferPool.getInstance().acquire(CHUNK_SIZE);
+
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                ByteBuffer frame = store.readFrame(indexes[i]);
+                int length = frame.remaining();
+                long receivedTime = store.getReceivedTime(indexes[i]);
+                putStoredEntry(zip, crc, names[i], receivedTime, frame, chunk);
+                manifest.append(names[i]).append(',').append(receivedTime).append(',').append(length).append('\n');
+            }
+
+            byte[] manifestBytes = manifest.toString().getBytes(UTF_8);
+            putStoredEntry(zip, crc, MANIFEST_FILE_NAME, System.currentTimeMillis(), ByteBuffer.wrap(manifestBytes), chunk);
+            zip.finish();
+        } finally {
+            ByteBufferPool.getInstance().release(chunk);
+        }
+    }
+
+    /*
+     * Stored entries need their size and CRC before the data is written,
+     * so the data is read through the chunk twice.
+     */
+    private static void putStoredEntry(ZipOutputStream zip, CRC32 crc, String name, long time, ByteBuffer data,
+                                       ByteBuffer chunk) throws IOException {
+        int length = data.remaining();
+        crc.reset();
+        ByteBuffer crcData = data.duplicate();
+        while (crcData.hasRemaining()) {
+            int count = nextChunk(crcData, chunk);
+            crc.update(chunk.array(), chunk.arrayOffset(), count);
+        }
+
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setTime(time);
+        entry.setSize(length);
+        entry.setCompressedSize(length);
+        entry.setCrc(crc.getValue());
+
+        zip.putNextEntry(entry);
+        ByteBuffer writeData = data.duplicate();
+        while (writeData.hasRemaining()) {
+            int count = nextChunk(writeData, chunk);
+            zip.write(chunk.array(), chunk.arrayOffset(), count);
+        }
+        zip.closeEntry();
+    }
+
+    //Copies the next chunk of data to the start of the chunk's array
+    private static int nextChunk(ByteBuffer data, ByteBuffer chunk) {
+        int count = Math.min(data.remaining(), chunk.capacity());
+        chunk.clear();
+        data.get(chunk.array(), chunk.arrayOffset(), count);
+        return count;
+    }
+}
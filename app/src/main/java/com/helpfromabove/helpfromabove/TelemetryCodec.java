@@ -0,0 +1,88 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+
+/**
+ * Fixed layout binary encoding for UAS positions and waypoints. It is
+ * used instead of JSON when the UASC accepts it at start_session.
+ * <p>
+ * Every message is MESSAGE_LENGTH bytes, big endian:
+ * [version : 1][type : 1][reserved : 2][time millis : 8]
+ * [latitude 1e-7 degrees : 4][longitude 1e-7 degrees : 4][altitude mm : 4]
+ * <p>
+ * The batched exchange carries these messages base64 encoded in its JSON.
+ * <p>
+ * Encoding and decoding work on caller owned arrays and objects, so the
+ * codec itself allocates nothing and callers choose what to reuse.
+ */
+
+public class TelemetryCodec {
+    protected static final String CONTENT_TYPE = "application/x-hfa-telemetry";
+    protected static final int MESSAGE_LENGTH = 24;
+    protected static final int TYPE_UAS_POSITION = 1;
+    protected static final int TYPE_WAYPOINT = 2;
+
+    private static final int VERSION = 1;
+    private static final double DEGREES_SCALE = 1e7;
+    private static final double ALTITUDE_SCALE = 1e3;
+
+    private TelemetryCodec() {
+    }
+
+    /*
+     * Writes location into buffer at offset as a message of the given type.
+     * Returns the number of bytes written.
+     */
+    protected static int encode(int type, Location location, byte[] buffer, int offset) {
+        buffer[offset] = (byte) VERSION;
+        buffer[offset + 1] = (byte) type;
+        buffer[offset + 2] = 0;
+        buffer[offset + 3] = 0;
+        putLong(buffer, offset + 4, location.getTime());
+        putInt(buffer, offset + 12, (int) Math.round(location.getLatitude() * DEGREES_SCALE));
+        putInt(buffer, offset + 16, (int) Math.round(location.getLongitude() * DEGREES_SCALE));
+        putInt(buffer, offset + 20, (int) Math.round(location.getAltitude() * ALTITUDE_SCALE));
+
+        return MESSAGE_LENGTH;
+    }
+
+    /*
+     * Reads a message of the given type from buffer at offset into location.
+     * Returns false without touching location if the message is not valid.
+     */
+    protected static boolean decode(int type, byte[] buffer, int offset, int length, Location location) {
+        if (length < MESSAGE_LENGTH || buffer[offset] != VERSION || buffer[offset + 1] != type) {
+            return false;
+        }
+
+        location.setTime(getLong(buffer, offset + 4));
+        location.setLatitude(getInt(buffer, offset + 12) / DEGREES_SCALE);
+        location.setLongitude(getInt(buffer, offset + 16) / DEGREES_SCALE);
+        location.setAltitude(getInt(buffer, offset + 20) / ALTITUDE_SCALE);
+
+        return true;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -2,10 +2,9 @@ package com.helpfromabove.helpfromabove;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.location.Location;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -21,7 +20,14 @@ import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by Michael Purcell on 10/16/2017.
@@ -35,49 +41,132 @@ public class UASCClient {
     private static final String LONGITUDE = "LONGITUDE";
     private static final String LATITUDE = "LATITUDE";
     private static final String STATUS = "STATUS";
+    private static final String ENDPOINT = "ENDPOINT";
+    private static final String BODY = "BODY";
+    private static final String HEARTBEAT = "HEARTBEAT";
+    //The heartbeat goes to the root, this names it in timeout counts
+    private static final String HEARTBEAT_ENDPOINT = "heartbeat";
+    private static final String WAYPOINT = "WAYPOINT";
+    private static final String LIGHT_CONTROL = "LIGHT_CONTROL";
+    private static final String FRAME = "FRAME";
+    private static final String ETAG = "ETAG";
+    private static final String TELEMETRY_ENCODING = "TELEMETRY_ENCODING";
+    private static final String TELEMETRY_ENCODING_BINARY = "BINARY";
+    private static final String TELEMETRY_ENCODING_JSON = "JSON";
+    //The exchange's UAS position as a base64 TelemetryCodec message, with binary telemetry
+    private static final String POSITION = "POSITION";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    //Requests whose rate is adapted by the UasCommunicationService
+    protected enum RequestType {
+        IMAGE,
+        GPS,
+    }
+
+    protected interface RequestStatsListener {
+        void onRequestComplete(RequestType type, long roundTripMillis, int payloadBytes, boolean success);
+    }
+
+    protected interface FrameListener {
+        /*
+         * Called on the thread that fetched the frame. The frame is only
+         * valid until this returns unless it is retained.
+         */
+        void onNewFrame(UasFrame frame);
+    }
 
     private Context context;
     private String hostIP;
     private String port;
 
-    private HandlerThread heartbeatHandlerThread;
-    private HandlerThread imageAccessHandlerThread;
-    private HandlerThread gpsAccessHandlerThread;
-    private HandlerThread waypointSendHandlerThread;
-    private HandlerThread toggleLightHandlerThread;
-    private HandlerThread sessionHandlerThread;
-
-
-    private Handler heartbeatHandler;
-    private Handler imageAccessHandler;
-    private Handler gpsAccessHandler;
-    private Handler waypointSendHandler;
-    private Handler toggleLightHandler;
-    private Handler sessionHandler;
+    //Persistent link used instead of the HTTP endpoints when the UASC supports it
+    private volatile UascStreamLink streamLink;
+    //Connecting runs from the heartbeat and startStreamLink, one at a time
+    private final Object streamLinkLock = new Object();
+    private volatile int streamPort = -1;
+    //A start_session sent over the link falls back to HTTP if it is not acked in time
+    private static final int START_SESSION_ACK_TIMEOUT = 5000;
+    private final AtomicBoolean awaitingStartSessionAck = new AtomicBoolean(false);
+    private Runnable startSessionAckTimeoutRunnable;
+    //When the unanswered image and telemetry requests over the link were sent, 0 if none
+    private final AtomicLong linkImageRequestStart = new AtomicLong(0);
+    private final AtomicLong linkTelemetryRequestStart = new AtomicLong(0);
+
+    //Positions pushed by the UASC over UDP, the HTTP poll is skipped while they are fresh
+    private static final int UDP_TELEMETRY_MAX_AGE = 2000;
+    //Pushed positions are broadcast at most this often, the newest is always kept
+    private static final int UDP_TELEMETRY_NOTIFY_INTERVAL = 500;
+    private volatile UdpTelemetryChannel udpTelemetryChannel;
+
+    //Runs all requests to the UASC, commands first, then telemetry, then images
+    private UascScheduler scheduler;
+    //Deadlines and cancellation for every HTTP request to the UASC
+    private UascRequestTracker requestTracker;
 
 
     private Runnable heartbeatRunnable;
     private Runnable accessServerImageRunnable;
+    private Runnable imageStreamRunnable;
     private Runnable accessGPSRunnable;
     private Runnable lightRunnable;
     private Runnable startSessionRunnable;
     private Runnable endSessionRunnable;
     private Runnable newWaypointRunnable;
 
+    //Only the newest waypoint waiting to be sent is kept, older ones are dropped
+    private final WaypointQueue waypointQueue = new WaypointQueue();
+    private final AtomicBoolean newWaypointScheduled = new AtomicBoolean(false);
+    private final AtomicInteger supersededWaypointCount = new AtomicInteger(0);
+
+    //Batched exchange: the GPS poll carries the heartbeat and pending commands
+    private String exchangeEndpoint;
+    private volatile boolean exchangeSupported = false;
+    private volatile boolean gpsAccessActive = false;
+    private final AtomicBoolean gpsAccessRunning = new AtomicBoolean(false);
+    private final AtomicReference<Boolean> pendingLight = new AtomicReference<>();
+    private volatile String latestFrameETag;
+
 
     //The delays are how often this should happen in milliseconds
     private int heartbeatDelay;
-    private int imageAccessDelay;
-    private int gpsAccessDelay;
+    private volatile int imageAccessDelay;
+    private volatile int gpsAccessDelay;
+    private volatile RequestStatsListener requestStatsListener;
 
     private String imageEndpoint;
+    private String imageStreamEndpoint;
     private String gpsEndpoint;
     private String newWaypointEndpoint;
     private String lightEndpoint;
     private String startSessionEndpoint;
     private String endSessionEndpoint;
-    private Bitmap imageBitmap;
-    private Location latestUASLocation;
+    //Recent frames by sequence number, see acquireFrame
+    private final FrameSlot frameSlot = new FrameSlot();
+    //Gets every new frame, the new image broadcast is sent directly without one
+    private volatile FrameListener frameListener;
+    //Decodes fetched frames so the next fetch does not wait for the decode
+    private final FrameStage decodeStage;
+    //How many fetched frames may wait for the decoder, the oldest is dropped after that
+    private static final int DECODE_QUEUE_CAPACITY = 2;
+    //Size of the view showing frames, 0 for full resolution
+    private volatile int displayWidth = 0;
+    private volatile int displayHeight = 0;
+    //Enough for a typical frame when the UASC does not send a Content-Length
+    private static final int INITIAL_IMAGE_BUFFER_SIZE = 64 * 1024;
+    //Identity of the last frame fetched from the imageEndpoint
+    private String lastImageETag;
+    private long lastImageModified;
+    private volatile boolean imageStreaming = false;
+    private volatile Location latestUASLocation;
+
+    //Set when the UASC accepts TelemetryCodec messages at start_session
+    private volatile boolean binaryTelemetry = false;
+    //Only used by the GPS access runnable
+    private final byte[] telemetryBuffer = new byte[TelemetryCodec.MESSAGE_LENGTH];
+    //Binary waypoints are encoded here while holding its lock
+    private final byte[] waypointBuffer = new byte[TelemetryCodec.MESSAGE_LENGTH];
 
     private boolean sessionActive = false;
 
@@ -95,150 +184,732 @@ public class UASCClient {
         testURLs.add("https://pbs.twimg.com/profile_images/875749462957670400/T0lwiBK8.jpg");
         testURLs.add("http://mathworld.wolfram.com/images/gifs/SmallTriambicIcosahedron.gif");
 
-        startHeartbeatHandlerThread();
-        startImageAccessHandlerThread();
-        startGpsAccessHandlerThread();
-        startWaypointSendHandlerThread();
-        startToggleLightHandlerThread();
-        startSessionHandlerThread();
+        scheduler = new UascScheduler();
+        requestTracker = new UascRequestTracker(scheduler);
+        initializeNewWaypoint();
+
+        decodeStage = new FrameStage("decode", DECODE_QUEUE_CAPACITY, FrameStage.DropPolicy.DROP_OLDEST, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                return decodeFrame(frame);
+            }
+        });
+        decodeStage.start();
+    }
+
+    /*
+     * Stops everything this client is doing and its threads. The client
+     * can not be used again after this, so call it before replacing it.
+     */
+    public void close(){
+        stopHeartbeat();
+        stopImageAccess();
+        stopGPSAccess(false);
+        stopStreamLink();
+        stopUdpTelemetry();
+        requestTracker.cancelAll();
+        scheduler.shutdown();
+        decodeStage.shutdown();
+        frameSlot.clear();
+    }
 
-        heartbeatHandler = new Handler(heartbeatHandlerThread.getLooper());
-        imageAccessHandler = new Handler(imageAccessHandlerThread.getLooper());
-        gpsAccessHandler = new Handler (gpsAccessHandlerThread.getLooper());
-        waypointSendHandler = new Handler(waypointSendHandlerThread.getLooper());
-        toggleLightHandler = new Handler(toggleLightHandlerThread.getLooper());
-        sessionHandler = new Handler(sessionHandlerThread.getLooper());
+    /*
+     * Cancels every request that is waiting on the UASC, for when the
+     * connection to it is lost.
+     */
+    public void cancelRequests(){
+        requestTracker.cancelAll();
+    }
+
+    public Map<String, Integer> getTimeoutCounts(){
+        return requestTracker.getTimeoutCounts();
     }
 
     public void startHeartbeat(int heartbeatDelay){
 
         this.heartbeatDelay = heartbeatDelay;
         initializeHeartbeat();
-        heartbeatHandler.postDelayed(heartbeatRunnable,0);
+        scheduler.postDelayed(UascScheduler.Lane.TELEMETRY, heartbeatRunnable,0);
 
     }
 
     public void stopHeartbeat(){
         if(heartbeatRunnable != null){
-            heartbeatHandler.removeCallbacks(heartbeatRunnable);
+            scheduler.removeCallbacks(heartbeatRunnable);
+        }
+        requestTracker.cancel(UascRequestTracker.Deadline.HEARTBEAT);
+    }
+
+    public void startStreamLink(int streamPort){
+        this.streamPort = streamPort;
+        scheduler.post(UascScheduler.Lane.TELEMETRY, new Runnable() {
+            @Override
+            public void run() {
+                connectStreamLink();
+            }
+        });
+    }
+
+    public void stopStreamLink(){
+        streamPort = -1;
+        UascStreamLink link = streamLink;
+        if(link != null){
+            link.close();
+        }
+    }
+
+    /*
+     * Opens a socket for the UASC to push positions to at a high rate.
+     * Commands and the rest of the telemetry stay on TCP.
+     */
+    public void startUdpTelemetry(final int telemetryPort){
+        scheduler.post(UascScheduler.Lane.TELEMETRY, new Runnable() {
+            @Override
+            public void run() {
+                if(udpTelemetryChannel != null){
+                    return;
+                }
+
+                UdpTelemetryChannel channel = new UdpTelemetryChannel(hostIP, telemetryPort, new UASCTelemetryListener());
+                try {
+                    channel.open();
+                    channel.subscribe();
+                    udpTelemetryChannel = channel;
+                } catch (IOException e) {
+                    channel.close();
+                    Log.w(TAG,"UDP telemetry unavailable, polling for positions: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void stopUdpTelemetry(){
+        UdpTelemetryChannel channel = udpTelemetryChannel;
+        udpTelemetryChannel = null;
+        if(channel != null){
+            channel.close();
         }
     }
 
+    /*
+     * Returns null if no UDP telemetry channel is open.
+     */
+    public UdpTelemetryChannel.Stats getUdpTelemetryStats(){
+        UdpTelemetryChannel channel = udpTelemetryChannel;
+        return (channel == null) ? null : channel.getStats();
+    }
+
     public void startImageAccess(String imageEndpoint, int imageAccessDelay){
 
         this.imageEndpoint = imageEndpoint;
         this.imageAccessDelay = imageAccessDelay;
+        resetImageIdentity();
         initializeAccessServerImage();
 
         //Need to wait at least a second before grabbing images so that
         //the session folder has time to be made in the users cloud service.
-        imageAccessHandler.postDelayed(accessServerImageRunnable,3000);
+        scheduler.postDelayed(UascScheduler.Lane.IMAGE, accessServerImageRunnable,3000);
+
+    }
+
+    /*
+     * Consumes the UASC's MJPEG stream so frames arrive as fast as the
+     * camera produces them. Falls back to polling the imageEndpoint every
+     * imageAccessDelay if the UASC does not serve the stream.
+     */
+    public void startImageStream(String imageStreamEndpoint, String imageEndpoint, int imageAccessDelay){
+
+        this.imageStreamEndpoint = imageStreamEndpoint;
+        this.imageEndpoint = imageEndpoint;
+        this.imageAccessDelay = imageAccessDelay;
+        imageStreaming = true;
+        resetImageIdentity();
+        initializeImageStream();
+        initializeAccessServerImage();
+
+        //Same wait as startImageAccess for the session folder to be made.
+        scheduler.postDelayed(UascScheduler.Lane.STREAM, imageStreamRunnable,3000);
 
     }
 
     public void stopImageAccess(){
         if(accessServerImageRunnable != null){
-            imageAccessHandler.removeCallbacks(accessServerImageRunnable);
+            scheduler.removeCallbacks(accessServerImageRunnable);
+        }
+
+        imageStreaming = false;
+        if(imageStreamRunnable != null){
+            scheduler.removeCallbacks(imageStreamRunnable);
         }
+        //Unblocks the stream read or image download on the image thread
+        requestTracker.cancel(UascRequestTracker.Deadline.IMAGE_STREAM);
+        requestTracker.cancel(UascRequestTracker.Deadline.IMAGE);
     }
 
-    public Bitmap getImageBitmap(){
-        return this.imageBitmap;
+    public void setImageAccessDelay(int imageAccessDelay){
+        this.imageAccessDelay = imageAccessDelay;
+    }
+
+    /*
+     * Frames are decoded downsampled to cover this size, which only the
+     * UI needs. Archived frames keep the encoded bytes at full resolution.
+     */
+    public void setImageDisplaySize(int displayWidth, int displayHeight){
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+    }
+
+    /*
+     * Returns the frame with the sequence number from the new image
+     * broadcast, or the newest one for FrameSlot.LATEST_SEQUENCE, with a
+     * reference for the caller, who must release it. Returns null if the
+     * frame is gone.
+     */
+    public UasFrame acquireFrame(long sequence){
+        return frameSlot.acquire(sequence);
     }
 
     protected Location getNewUasLocation() {
         return latestUASLocation;
     }
 
+    /*
+     * Once set, each GPS poll becomes a single exchange with the UASC that
+     * also carries the heartbeat and any pending commands. Falls back to
+     * separate requests if the UASC does not have the endpoint.
+     */
+    public void setExchangeEndpoint(String exchangeEndpoint){
+        this.exchangeEndpoint = exchangeEndpoint;
+        exchangeSupported = (exchangeEndpoint != null);
+        latestFrameETag = null;
+    }
+
     public void startGPSAccess(String gpsEndpoint, int gpsAccessDelay){
         this.gpsEndpoint = gpsEndpoint;
         this.gpsAccessDelay = gpsAccessDelay;
+        gpsAccessActive = true;
         initializeAccessGPS();
-        gpsAccessHandler.postDelayed(accessGPSRunnable,gpsAccessDelay);
+        scheduler.postDelayed(UascScheduler.Lane.TELEMETRY, accessGPSRunnable,gpsAccessDelay);
+    }
+
+    public void setGPSAccessDelay(int gpsAccessDelay){
+        this.gpsAccessDelay = gpsAccessDelay;
+    }
+
+    public void setFrameListener(FrameListener frameListener){
+        this.frameListener = frameListener;
+    }
+
+    public void setRequestStatsListener(RequestStatsListener requestStatsListener){
+        this.requestStatsListener = requestStatsListener;
     }
 
     public void stopGPSAccess(){
+        stopGPSAccess(true);
+    }
+
+    /*
+     * Commands waiting for the next exchange are sent separately, or
+     * dropped when the UASC is gone and nothing could reach it.
+     */
+    public void stopGPSAccess(boolean sendPendingCommands){
+        gpsAccessActive = false;
         if(accessGPSRunnable != null){
-            gpsAccessHandler.removeCallbacks(accessGPSRunnable);
+            scheduler.removeCallbacks(accessGPSRunnable);
+        }
+        requestTracker.cancel(UascRequestTracker.Deadline.TELEMETRY);
+        if(sendPendingCommands){
+            sendPendingCommandsSeparately();
+        }
+        else if(waypointQueue.clear() | pendingLight.getAndSet(null) != null){
+            Log.w(TAG,"Dropped commands that were waiting for the UASC.");
         }
     }
 
     public void toogleLight(String lightEndpoint, boolean on){
         this.lightEndpoint = lightEndpoint;
+        if(isExchangeActive()){
+            pendingLight.set(on);
+            requestExchangeNow();
+            return;
+        }
         initializeLight(on);
-        toggleLightHandler.post(lightRunnable);
+        scheduler.post(UascScheduler.Lane.COMMAND, lightRunnable);
     }
 
     public void sendStartSession(String startSessionEndpoint){
         this.startSessionEndpoint = startSessionEndpoint;
+        binaryTelemetry = false;
         initializeStartSession();
-        sessionHandler.post(startSessionRunnable);
+        scheduler.post(UascScheduler.Lane.COMMAND, startSessionRunnable);
     }
 
     public void sendEndSession(String endSessionEndpoint){
         sessionActive = false;
+        awaitingStartSessionAck.set(false);
         this.endSessionEndpoint = endSessionEndpoint;
         initializeEndSession();
-        sessionHandler.post(endSessionRunnable);
+        scheduler.post(UascScheduler.Lane.COMMAND, endSessionRunnable);
     }
 
+    /*
+     * Replaces any waypoint that has not been sent yet. When the link is
+     * slower than new waypoints arrive the UAS always gets the newest.
+     */
     public void sendNewWaypoint(String newWaypointEndpoint, Location waypoint){
         this.newWaypointEndpoint = newWaypointEndpoint;
-        initializeNewWaypoint(waypoint);
-        waypointSendHandler.post(newWaypointRunnable);
+
+        if(waypointQueue.offer(new Location(waypoint))){
+            Log.d(TAG,"Dropped stale waypoint. Superseded waypoints: " + supersededWaypointCount.incrementAndGet());
+        }
+
+        if(isExchangeActive()){
+            requestExchangeNow();
+        }
+        else if(newWaypointScheduled.compareAndSet(false, true)){
+            scheduler.post(UascScheduler.Lane.COMMAND, newWaypointRunnable);
+        }
     }
 
-    //All of the methods for starting and stopping handler threads
-    //region HandlerThreads
-    public void startHeartbeatHandlerThread(){
-        heartbeatHandlerThread = new HandlerThread("UASC-Heartbeat");
-        heartbeatHandlerThread.start();
+    /*
+     * Adds altitudeOffset to the waypoint waiting to be sent, and to any
+     * newer waypoint that replaces it. Returns false if there is no
+     * waypoint waiting.
+     */
+    public boolean foldAltitudeOffset(double altitudeOffset){
+        return waypointQueue.foldAltitudeOffset(altitudeOffset);
     }
-    public void stopHeartBeatHandlerThread(){
-        heartbeatHandlerThread.quitSafely();
+
+    public int getSupersededWaypointCount(){
+        return supersededWaypointCount.get();
     }
 
-    public void startImageAccessHandlerThread(){
-        imageAccessHandlerThread = new HandlerThread("UASC-Image_Access");
-        imageAccessHandlerThread.start();
+    //Methods for sending over the stream link. These return false when the
+    //link is not available so the caller can fall back to the HTTP endpoints.
+    //region StreamLink
+    private boolean isStreamLinkConnected(){
+        UascStreamLink link = streamLink;
+        return link != null && link.isConnected();
     }
-    public void stopImageAccessHandlerThread(){
-        imageAccessHandlerThread.quitSafely();
+
+    private void subscribeUdpTelemetry(){
+        UdpTelemetryChannel channel = udpTelemetryChannel;
+        if(channel != null){
+            try {
+                channel.subscribe();
+                Log.d(TAG,"UDP telemetry: " + channel.getStats());
+            } catch (IOException e) {
+                Log.e(TAG,e.getMessage());
+            }
+        }
     }
 
-    public void startGpsAccessHandlerThread() {
-        gpsAccessHandlerThread = new HandlerThread("UASC-GPS_Access");
-        gpsAccessHandlerThread.start();
+    /*
+     * A link that dropped is closed once it is replaced, so its socket
+     * and reader thread do not leak.
+     */
+    private void connectStreamLink(){
+        synchronized (streamLinkLock) {
+            if(streamPort <= 0 || isStreamLinkConnected()){
+                return;
+            }
+
+            UascStreamLink link = new UascStreamLink(hostIP, streamPort, new UASCStreamLinkListener());
+            try {
+                link.connect();
+            } catch (IOException e) {
+                Log.w(TAG,"Stream link unavailable, using HTTP endpoints: " + e.getMessage());
+                return;
+            }
+
+            UascStreamLink oldLink = streamLink;
+            streamLink = link;
+            if(oldLink != null){
+                oldLink.close();
+            }
+            //stopStreamLink may have run while connecting
+            if(streamPort <= 0){
+                link.close();
+            }
+        }
+    }
+
+    private boolean sendOverStreamLink(int type, byte[] payload){
+        UascStreamLink link = streamLink;
+        if(link != null && link.isConnected()){
+            try {
+                link.send(type, payload);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG,"Stream link send failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Sends a request whose reply comes back on the reader thread, and
+     * times it until onStreamLinkReply. A request still unanswered when
+     * the next one is sent is reported as failed.
+     */
+    private boolean sendTimedRequestOverStreamLink(RequestType type, AtomicLong requestStart, int frameType, byte[] payload){
+        long previousStart = requestStart.getAndSet(SystemClock.elapsedRealtime());
+        if(!sendOverStreamLink(frameType, payload)){
+            requestStart.set(0);
+            return false;
+        }
+
+        if(previousStart > 0){
+            reportRequestComplete(type, previousStart, -1);
+        }
+        return true;
+    }
+
+    //Frames the UASC pushes without a request are not timed
+    private void onStreamLinkReply(RequestType type, AtomicLong requestStart, int payloadBytes){
+        long start = requestStart.getAndSet(0);
+        if(start > 0){
+            reportRequestComplete(type, start, payloadBytes);
+        }
+    }
+
+    private boolean sendCommandOverStreamLink(String endpoint, JSONObject body) throws JSONException {
+        if(!isStreamLinkConnected()){
+            return false;
+        }
+
+        JSONObject command = new JSONObject();
+        command.put(ENDPOINT, endpoint);
+        command.put(BODY, body);
+        return sendOverStreamLink(UascStreamLink.FRAME_COMMAND, command.toString().getBytes(UTF_8));
+    }
+    //endregion
+
+    private void handleUasLocationMessage(String serverMessage) throws JSONException {
+        handleUasLocationMessage(new JSONObject(serverMessage));
+    }
+
+    private void handleUasLocationMessage(JSONObject jsonObject) throws JSONException {
+        //String status = jsonObject.getString(STATUS);
+
+        double altitude = jsonObject.getDouble(ALTITUDE);
+        double latitude = jsonObject.getDouble(LATITUDE);
+        double longitude = jsonObject.getDouble(LONGITUDE);
+
+        //This works for storing the location values in a location object
+        Location location = new Location("");
+
+        location.setAltitude(altitude);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        setLatestUasLocation(location);
+    }
+
+    private void handleUasLocationMessage(byte[] message, int length){
+        //A new Location each time, readers of latestUASLocation keep the one they got
+        Location location = new Location("");
+        if(TelemetryCodec.decode(TelemetryCodec.TYPE_UAS_POSITION, message, 0, length, location)){
+            setLatestUasLocation(location);
+        }
+        else {
+            Log.w(TAG,"Received invalid binary UAS Location.");
+        }
+    }
+
+    private void setLatestUasLocation(Location location){
+        latestUASLocation = location;
+
+        Log.d(TAG,"Received UAS Location.");
+        CommandService.notifyNewUasLocationAvailable(context);
+    }
+
+    private void handleStartSessionResponse(JSONObject response) throws JSONException {
+        String status = response.getString(STATUS);
+        if(status.equals("OK"))
+        {
+            binaryTelemetry = TELEMETRY_ENCODING_BINARY.equals(response.optString(TELEMETRY_ENCODING, TELEMETRY_ENCODING_JSON));
+            Log.i(TAG,"Telemetry encoding: " + (binaryTelemetry ? TELEMETRY_ENCODING_BINARY : TELEMETRY_ENCODING_JSON));
+
+            sessionActive = true;
+            //When the uasc is ready for gps access,image access and sending new waypoints
+            CommandService.notifyLocationUascCalibrationComplete(context);
+        }
+        else
+        {
+            //If the uasc is not read try again in x seconds
+            scheduler.postDelayed(UascScheduler.Lane.COMMAND, startSessionRunnable,3000);
+        }
+    }
+
+    private void handleImageFrame(byte[] frame){
+        handleEncodedImage(ByteBuffer.wrap(frame), null);
     }
-    public void stopGpsAccessHandlerThread(){
-        gpsAccessHandlerThread.quitSafely();
+
+    /*
+     * Queues the image between the buffer's position and limit to be
+     * decoded and returns straight away, so the caller can fetch the next
+     * image while this one decodes. Fetch threads also carry telemetry
+     * and acks, so if the decoder falls behind the oldest waiting image
+     * is dropped rather than making them wait. The frame owns the buffer
+     * from here on.
+     */
+    private void handleEncodedImage(ByteBuffer encodedBytes, ByteBufferPool pool){
+        UasFrame frame = new UasFrame(encodedBytes, pool);
+        decodeStage.offer(frame);
+        frame.release();
     }
 
-    public void startWaypointSendHandlerThread(){
-        waypointSendHandlerThread = new HandlerThread("UASC-Waypoint_Send");
-        waypointSendHandlerThread.start();
+    /*
+     * Runs on the decode stage's thread. Decodes the frame at the display
+     * size and makes it the latest frame.
+     * Returns false if the image could not be decoded.
+     */
+    private boolean decodeFrame(UasFrame frame){
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        Bitmap bitmap = frame.decodeBitmap(bitmapPool, displayWidth, displayHeight);
+
+        //Only broadcast new image if there is one.
+        if (bitmap == null) {
+            Log.w(TAG,"Could not decode image from UASC.");
+            return false;
+        }
+
+        frame.setBitmap(bitmap, bitmapPool);
+        frameSlot.publish(frame.retain());
+
+        FrameListener listener = frameListener;
+        if (listener != null) {
+            listener.onNewFrame(frame);
+        } else {
+            CommandService.notifyNewUasImageAvailable(context, frame.getSequence());
+        }
+        return true;
     }
-    public void stopWaypointSendHandlerThread(){
-        waypointSendHandlerThread.quitSafely();
+
+    /*
+     * Reads the whole response body straight into a pooled buffer, which
+     * is returned flipped for reading. contentLength is -1 if unknown.
+     */
+    private ByteBuffer readImageBody(InputStream inputStream, int contentLength) throws IOException {
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ByteBuffer buffer = pool.acquire(contentLength > 0 ? contentLength : INITIAL_IMAGE_BUFFER_SIZE);
+
+        try {
+            int count;
+            do {
+                if(!buffer.hasRemaining()){
+                    buffer = pool.grow(buffer, buffer.capacity() + 1);
+                }
+                count = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if(count > 0){
+                    buffer.position(buffer.position() + count);
+                }
+            } while(count >= 0);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        } finally {
+            inputStream.close();
+        }
+
+        buffer.flip();
+        return buffer;
     }
 
-    public void startToggleLightHandlerThread(){
-        toggleLightHandlerThread = new HandlerThread("UASC-Toggle_Light");
-        toggleLightHandlerThread.start();
+    /*
+     * A payloadBytes less than 0 means the request failed.
+     */
+    private void reportRequestComplete(RequestType type, long requestStart, int payloadBytes){
+        RequestStatsListener listener = requestStatsListener;
+        if(listener != null){
+            long roundTripMillis = SystemClock.elapsedRealtime() - requestStart;
+            listener.onRequestComplete(type, roundTripMillis, Math.max(payloadBytes, 0), payloadBytes >= 0);
+        }
     }
-    public void stopToggleLightHandlerThread(){
-        toggleLightHandlerThread.quitSafely();
+
+    //Methods for the batched exchange with the UASC
+    //region Exchange
+    private boolean isExchangeActive(){
+        //The stream link already carries everything on one connection
+        return gpsAccessActive && exchangeSupported && !isStreamLinkConnected();
     }
 
-    public void startSessionHandlerThread(){
-        sessionHandlerThread = new HandlerThread("UASC-Session");
-        sessionHandlerThread.start();
+    private boolean hasPendingCommands(){
+        return waypointQueue.isPending() || pendingLight.get() != null;
     }
-    public void stopSessionHandlerThread(){
-        sessionHandlerThread.quitSafely();
+
+    /*
+     * Runs the GPS poll now so pending commands do not wait for the next
+     * one. The poll skips itself if one is already running.
+     */
+    private void requestExchangeNow(){
+        scheduler.removeCallbacks(accessGPSRunnable);
+        scheduler.post(UascScheduler.Lane.COMMAND, accessGPSRunnable);
+    }
+
+    private void sendPendingCommandsSeparately(){
+        if(waypointQueue.isPending() && newWaypointScheduled.compareAndSet(false, true)){
+            scheduler.post(UascScheduler.Lane.COMMAND, newWaypointRunnable);
+        }
+
+        Boolean light = pendingLight.getAndSet(null);
+        if(light != null){
+            initializeLight(light);
+            scheduler.post(UascScheduler.Lane.COMMAND, lightRunnable);
+        }
+    }
+
+    /*
+     * One request carries the heartbeat and any pending commands, the
+     * response has the latest UAS location and frame metadata. Returns
+     * the size of the response, or -1 if the exchange failed.
+     */
+    private int exchange() throws IOException, JSONException {
+        WaypointQueue.Entry waypointEntry = waypointQueue.take();
+        Location waypoint = (waypointEntry == null) ? null : waypointEntry.getWaypoint();
+        Boolean light = pendingLight.getAndSet(null);
+        boolean delivered = false;
+
+        try {
+            JSONObject request = new JSONObject();
+            request.put(HEARTBEAT, true);
+            boolean binary = binaryTelemetry;
+            if(binary){
+                request.put(TELEMETRY_ENCODING, TELEMETRY_ENCODING_BINARY);
+            }
+            if(waypoint != null && binary){
+                int length = TelemetryCodec.encode(TelemetryCodec.TYPE_WAYPOINT, waypoint, telemetryBuffer, 0);
+                request.put(WAYPOINT, Base64.encodeToString(telemetryBuffer, 0, length, Base64.NO_WRAP));
+            }
+            else if(waypoint != null){
+                request.put(WAYPOINT, waypointToJson(waypoint));
+            }
+            if(light != null){
+                request.put(LIGHT_CONTROL, light.booleanValue());
+            }
+
+            URL url = new URL("http://"+hostIP+":"+port+"/"+exchangeEndpoint);
+            HttpURLConnection connection = requestTracker.open(url, exchangeEndpoint, UascRequestTracker.Deadline.TELEMETRY);
+            String serverMessage;
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                jsonWriteToOutputSteam(request, connection.getOutputStream());
+
+                int code = connection.getResponseCode();
+                if(code != HttpURLConnection.HTTP_OK){
+                    if(code == HttpURLConnection.HTTP_NOT_FOUND){
+                        Log.i(TAG,"UASC has no " + exchangeEndpoint + " endpoint, using separate requests.");
+                        exchangeSupported = false;
+                    }
+                    else {
+                        Log.w(TAG,"Exchange failed. Responce Code: " + code);
+                    }
+                    return -1;
+                }
+                delivered = true;
+
+                serverMessage = readStreamToString(connection.getInputStream());
+            } finally {
+                requestTracker.finish(connection);
+            }
+
+            JSONObject response = new JSONObject(serverMessage);
+            String position = response.optString(POSITION, null);
+            if(binary && position != null){
+                try {
+                    byte[] message = Base64.decode(position, Base64.NO_WRAP);
+                    handleUasLocationMessage(message, message.length);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG,"Received invalid binary UAS Location.");
+                }
+            }
+            else {
+                handleUasLocationMessage(response);
+            }
+
+            JSONObject frame = response.optJSONObject(FRAME);
+            if(frame != null){
+                latestFrameETag = frame.optString(ETAG, null);
+            }
+
+            return serverMessage.length();
+        } finally {
+            if(!delivered){
+                //Put the commands back unless something newer replaced them
+                if(waypointEntry != null){
+                    waypointQueue.putBack(waypointEntry);
+                }
+                if(light != null){
+                    pendingLight.compareAndSet(null, light);
+                }
+            }
+        }
     }
     //endregion
 
+    private void resetImageIdentity(){
+        lastImageETag = null;
+        lastImageModified = 0;
+    }
+
+    /*
+     * Sends a conditional request so an unchanged image is not downloaded,
+     * decoded, broadcast, stored or uploaded again. A 304 response or a
+     * repeated ETag means the UASC has no new frame.
+     * The request is reported once the body is read, so the round trip
+     * does not include handing the image to the decoder.
+     */
+    private void fetchImageIfChanged(URL url, long requestStart) throws IOException {
+        HttpURLConnection connection = requestTracker.open(url, imageEndpoint, UascRequestTracker.Deadline.IMAGE);
+
+        try {
+            if(lastImageETag != null){
+                connection.setRequestProperty("If-None-Match", lastImageETag);
+            }
+            if(lastImageModified > 0){
+                connection.setIfModifiedSince(lastImageModified);
+            }
+
+            int code = connection.getResponseCode();
+            String eTag = connection.getHeaderField("ETag");
+
+            if(code == HttpURLConnection.HTTP_NOT_MODIFIED || (eTag != null && eTag.equals(lastImageETag))){
+                Log.d(TAG,"No new image from UASC.");
+                reportRequestComplete(RequestType.IMAGE, requestStart, 0);
+            }
+            else if(code != HttpURLConnection.HTTP_OK){
+                Log.w(TAG,"Image request failed. Responce Code: " + code);
+                reportRequestComplete(RequestType.IMAGE, requestStart, -1);
+            }
+            else {
+                ByteBuffer body = readImageBody(connection.getInputStream(), connection.getContentLength());
+                reportRequestComplete(RequestType.IMAGE, requestStart, body.remaining());
+
+                //An image that does not decode would not decode on the next fetch either
+                handleEncodedImage(body, ByteBufferPool.getInstance());
+                lastImageETag = eTag;
+                lastImageModified = connection.getLastModified();
+            }
+        } finally {
+            requestTracker.finish(connection);
+        }
+    }
+
+    private int readTelemetryMessage(InputStream inputStream) throws IOException {
+        int length = 0;
+        while(length < telemetryBuffer.length){
+            int count = inputStream.read(telemetryBuffer, length, telemetryBuffer.length - length);
+            if(count < 0){
+                break;
+            }
+            length += count;
+        }
+        inputStream.close();
+
+        return length;
+    }
 
     private String readStreamToString(InputStream inputStream) throws IOException {
 
@@ -270,11 +941,20 @@ public class UASCClient {
         heartbeatRunnable = new Runnable() {
             @Override
             public void run() {
+                connectStreamLink();
+                subscribeUdpTelemetry();
+                //The exchange carries the heartbeat while it is running
+                if(isExchangeActive() || sendOverStreamLink(UascStreamLink.FRAME_HEARTBEAT, NO_PAYLOAD)){
+                    scheduler.postDelayed(UascScheduler.Lane.TELEMETRY, this,heartbeatDelay);
+                    return;
+                }
+
+                HttpURLConnection connection = null;
                 try {
 
                     Log.d(TAG,hostIP+":"+port);
                     URL url = new URL("http://"+hostIP+":"+port);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    connection = requestTracker.open(url, HEARTBEAT_ENDPOINT, UascRequestTracker.Deadline.HEARTBEAT);
                     connection.setRequestMethod("POST");
                     connection.setDoOutput(true);
 
@@ -292,15 +972,17 @@ public class UASCClient {
                     osw.close();
                     int code = connection.getResponseCode();
 
-                    connection.disconnect();
                     Log.d(TAG,"Responce Code: " + code);
                 } catch (FileNotFoundException e) {
                     Log.e(TAG,e.getMessage());
                 } catch (IOException e) {
-                    Log.e(TAG,e.getMessage());
+                    requestTracker.onRequestFailed(HEARTBEAT_ENDPOINT, e);
+                } finally {
+                    if(connection != null)
+                        requestTracker.finish(connection);
                 }
 
-                heartbeatHandler.postDelayed(this,heartbeatDelay);
+                scheduler.postDelayed(UascScheduler.Lane.TELEMETRY, this,heartbeatDelay);
             }
         };
     }
@@ -309,6 +991,24 @@ public class UASCClient {
         accessServerImageRunnable = new Runnable() {
 
             public void run() {
+                if(!debugging && sendTimedRequestOverStreamLink(RequestType.IMAGE, linkImageRequestStart,
+                        UascStreamLink.FRAME_IMAGE_REQUEST, imageEndpoint.getBytes(UTF_8))){
+                    //The image comes back as a FRAME_IMAGE on the link's reader thread
+                    if(sessionActive)
+                        scheduler.postDelayed(UascScheduler.Lane.IMAGE, this, imageAccessDelay);
+                    return;
+                }
+
+                String frameETag = latestFrameETag;
+                if(!debugging && isExchangeActive() && frameETag != null && frameETag.equals(lastImageETag)){
+                    //The last exchange says the UASC has no new frame
+                    if(sessionActive)
+                        scheduler.postDelayed(UascScheduler.Lane.IMAGE, this, imageAccessDelay);
+                    return;
+                }
+
+                long requestStart = SystemClock.elapsedRealtime();
+
                 try {
 
                     URL tempUrl;
@@ -327,65 +1027,167 @@ public class UASCClient {
                         //End of testing code
                     }
 
-                    imageBitmap = BitmapFactory.decodeStream(tempUrl.openStream());
-
-                    //Only broadcast new image if there is one.
-                    if (imageBitmap != null)
-                        CommandService.notifyNewUasImageAvailable(context);
+                    if(!debugging) {
+                        fetchImageIfChanged(tempUrl, requestStart);
+                    }
+                    else {
+                        handleEncodedImage(readImageBody(tempUrl.openStream(), -1), ByteBufferPool.getInstance());
+                    }
 
                 } catch (MalformedURLException e) {
                     e.printStackTrace();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    requestTracker.onRequestFailed(imageEndpoint, e);
+                    if(!debugging)
+                        reportRequestComplete(RequestType.IMAGE, requestStart, -1);
                 }
                 if(sessionActive)
-                    imageAccessHandler.postDelayed(this, imageAccessDelay);
+                    scheduler.postDelayed(UascScheduler.Lane.IMAGE, this, imageAccessDelay);
             }
 
         };
     }
 
-    private void initializeAccessGPS(){
-        accessGPSRunnable = new Runnable() {
+    private void initializeImageStream() {
+        imageStreamRunnable = new Runnable() {
             @Override
             public void run() {
+                boolean fallBackToPolling = false;
+
                 try {
-                    URL url = new URL("http://"+hostIP+":"+port+"/"+gpsEndpoint);
+                    URL url = new URL("http://" + hostIP + ":" + port + "/" + imageStreamEndpoint);
+                    HttpURLConnection connection = requestTracker.open(url, imageStreamEndpoint, UascRequestTracker.Deadline.IMAGE_STREAM);
+
+                    try {
+                        String boundary = MjpegStreamReader.parseBoundary(connection.getContentType());
+                        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK || boundary == null) {
+                            //Older UASC firmware only serves the static image
+                            Log.i(TAG, "No MJPEG stream at " + imageStreamEndpoint + ", polling " + imageEndpoint + " instead.");
+                            fallBackToPolling = true;
+                        } else {
+                            ByteBufferPool pool = ByteBufferPool.getInstance();
+                            MjpegStreamReader reader = new MjpegStreamReader(connection.getInputStream(), boundary, pool);
+                            ByteBuffer frame;
+                            while (imageStreaming && sessionActive && (frame = reader.readFrame()) != null) {
+                                handleEncodedImage(frame, pool);
+                            }
+                            reader.close();
+                        }
+                    } finally {
+                        requestTracker.finish(connection);
+                    }
+                } catch (MalformedURLException e) {
+                    Log.e(TAG, e.getMessage());
+                } catch (IOException e) {
+                    if (imageStreaming) {
+                        requestTracker.onRequestFailed(imageStreamEndpoint, e);
+                    }
+                }
 
-                    String serverMessage = readStreamToString(url.openStream());
+                if (fallBackToPolling) {
+                    imageStreaming = false;
+                    scheduler.post(UascScheduler.Lane.IMAGE, accessServerImageRunnable);
+                } else if (imageStreaming && sessionActive) {
+                    //Reconnect to the stream after the same delay as polling
+                    scheduler.postDelayed(UascScheduler.Lane.STREAM, this, imageAccessDelay);
+                }
+            }
+        };
+    }
 
-                    JSONObject jsonObject = new JSONObject(serverMessage);
+    private void initializeAccessGPS(){
+        accessGPSRunnable = new Runnable() {
+            @Override
+            public void run() {
+                //requestExchangeNow can post this while it is already running
+                if(!gpsAccessRunning.compareAndSet(false, true)){
+                    return;
+                }
 
-                    //String status = jsonObject.getString(STATUS);
+                UdpTelemetryChannel channel = udpTelemetryChannel;
+                if(!isExchangeActive() && channel != null && channel.isFresh(UDP_TELEMETRY_MAX_AGE)){
+                    //Positions are already arriving over UDP
+                    sendPendingCommandsSeparately();
+                    scheduleNextGPSAccess(this, false);
+                    return;
+                }
 
-                    double altitude = jsonObject.getDouble(ALTITUDE);
-                    double latitude = jsonObject.getDouble(LATITUDE);
-                    double longitude = jsonObject.getDouble(LONGITUDE);
+                if(sendTimedRequestOverStreamLink(RequestType.GPS, linkTelemetryRequestStart,
+                        UascStreamLink.FRAME_TELEMETRY_REQUEST, gpsEndpoint.getBytes(UTF_8))){
+                    //The location comes back as a FRAME_TELEMETRY on the link's reader thread
+                    sendPendingCommandsSeparately();
+                    scheduleNextGPSAccess(this, false);
+                    return;
+                }
 
-                    //This works for storing the location values in a location object
-                    latestUASLocation = new Location("");
+                long requestStart = SystemClock.elapsedRealtime();
+                int payloadBytes = -1;
+                boolean exchanged = false;
 
-                    latestUASLocation.setAltitude(altitude);
-                    latestUASLocation.setLatitude(latitude);
-                    latestUASLocation.setLongitude(longitude);
+                try {
+                    URL url = new URL("http://"+hostIP+":"+port+"/"+gpsEndpoint);
 
-                    Log.d(TAG,"Received UAS Location.");
-                    CommandService.notifyNewUasLocationAvailable(context);
+                    if(isExchangeActive()){
+                        payloadBytes = exchange();
+                        exchanged = payloadBytes >= 0;
+                        if(!exchangeSupported){
+                            sendPendingCommandsSeparately();
+                        }
+                    }
+                    else if(binaryTelemetry){
+                        HttpURLConnection connection = requestTracker.open(url, gpsEndpoint, UascRequestTracker.Deadline.TELEMETRY);
+                        try {
+                            connection.setRequestProperty("Accept", TelemetryCodec.CONTENT_TYPE);
+                            int length = readTelemetryMessage(connection.getInputStream());
+                            handleUasLocationMessage(telemetryBuffer, length);
+                            payloadBytes = length;
+                        } finally {
+                            requestTracker.finish(connection);
+                        }
+                    }
+                    else {
+                        HttpURLConnection connection = requestTracker.open(url, gpsEndpoint, UascRequestTracker.Deadline.TELEMETRY);
+                        String serverMessage;
+                        try {
+                            serverMessage = readStreamToString(connection.getInputStream());
+                        } finally {
+                            requestTracker.finish(connection);
+                        }
+
+                        handleUasLocationMessage(serverMessage);
+                        payloadBytes = serverMessage.length();
+                    }
 
 
                 } catch (MalformedURLException e) {
                     Log.e(TAG,e.getMessage());
                 } catch (IOException e) {
-                    Log.e(TAG,e.getMessage());
+                    requestTracker.onRequestFailed(isExchangeActive() ? exchangeEndpoint : gpsEndpoint, e);
                 } catch (JSONException e) {
                     Log.e(TAG,e.getMessage());
                 }
-                gpsAccessHandler.postDelayed(this,gpsAccessDelay);
+                reportRequestComplete(RequestType.GPS, requestStart, payloadBytes);
+                scheduleNextGPSAccess(this, exchanged);
             }
 
         };
     }
 
+    /*
+     * exchanged is true if this run delivered an exchange. After a failed
+     * one the commands put back wait the normal, possibly backed off,
+     * delay rather than retrying straight away.
+     */
+    private void scheduleNextGPSAccess(Runnable runnable, boolean exchanged){
+        gpsAccessRunning.set(false);
+        scheduler.removeCallbacks(runnable);
+        if(gpsAccessActive){
+            //Commands that came in during the exchange go out right away
+            long delay = (exchanged && isExchangeActive() && hasPendingCommands()) ? 0 : gpsAccessDelay;
+            scheduler.postDelayed(UascScheduler.Lane.TELEMETRY, runnable, delay);
+        }
+    }
+
     private void initializeLight(final boolean on){
         lightRunnable = new Runnable() {
             @Override
@@ -393,30 +1195,39 @@ public class UASCClient {
 
                 try {
 
-                    URL url = new URL("http://"+hostIP+":"+port+"/"+lightEndpoint);
-                    //Server can detect this and act off of it.
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("POST");
-
                     JSONObject jsonObject = new JSONObject();
 
-                    jsonObject.put("LIGHT_CONTROL",on);
+                    jsonObject.put(LIGHT_CONTROL,on);
+
+                    if(sendCommandOverStreamLink(lightEndpoint, jsonObject)){
+                        Log.d(TAG, "Sent light toggle over stream link.");
+                        return;
+                    }
+
+                    URL url = new URL("http://"+hostIP+":"+port+"/"+lightEndpoint);
+                    //Server can detect this and act off of it.
+                    HttpURLConnection connection = requestTracker.open(url, lightEndpoint, UascRequestTracker.Deadline.COMMAND);
+                    try {
+                        connection.setRequestMethod("POST");
 
-                    String msg = jsonObject.toString();
+                        String msg = jsonObject.toString();
 
-                    Log.d(TAG, "Sending light toggle.");
+                        Log.d(TAG, "Sending light toggle.");
 
-                    OutputStreamWriter outputStreamWriter = new OutputStreamWriter(connection.getOutputStream());
-                    outputStreamWriter.write(msg);
-                    outputStreamWriter.flush();
-                    outputStreamWriter.close();
+                        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(connection.getOutputStream());
+                        outputStreamWriter.write(msg);
+                        outputStreamWriter.flush();
+                        outputStreamWriter.close();
 
-                    connection.getResponseCode();
+                        connection.getResponseCode();
+                    } finally {
+                        requestTracker.finish(connection);
+                    }
 
                 } catch (MalformedURLException e) {
                     e.printStackTrace();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    requestTracker.onRequestFailed(lightEndpoint, e);
                 } catch (JSONException e) {
                     e.printStackTrace();
                 }
@@ -432,36 +1243,66 @@ public class UASCClient {
 
                 try {
 
-                    URL url = new URL("http://"+hostIP+":"+port+"/"+startSessionEndpoint);
-
-                    String serverMessage = readStreamToString(url.openStream());
-
-                    JSONObject jsonObject = new JSONObject(serverMessage);
+                    //Offer the binary telemetry encoding, the UASC picks one in its response
+                    JSONObject offer = new JSONObject();
+                    offer.put(TELEMETRY_ENCODING, TELEMETRY_ENCODING_BINARY + "," + TELEMETRY_ENCODING_JSON);
 
-                    String status = jsonObject.getString(STATUS);
-
-                    if(status.equals("OK"))
-                    {
-                        sessionActive = true;
-                        //When the uasc is ready for gps access,image access and sending new waypoints
-                        CommandService.notifyLocationUascCalibrationComplete(context);
-                    }
-                    else
-                    {
-                        //If the uasc is not read try again in x seconds
-                        sessionHandler.postDelayed(this,3000);
+                    //The status comes back as a FRAME_COMMAND_ACK on the link's reader thread
+                    awaitingStartSessionAck.set(true);
+                    if(sendCommandOverStreamLink(startSessionEndpoint, offer)){
+                        scheduler.postDelayed(UascScheduler.Lane.COMMAND, startSessionAckTimeoutRunnable, START_SESSION_ACK_TIMEOUT);
+                        return;
                     }
+                    awaitingStartSessionAck.set(false);
+
+                    sendStartSessionOverHttp();
 
-                } catch (MalformedURLException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
                 } catch (JSONException e) {
                     e.printStackTrace();
                 }
 
             }
         };
+
+        startSessionAckTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if(awaitingStartSessionAck.getAndSet(false)){
+                    Log.w(TAG,"No start_session ack over stream link, sending it over HTTP.");
+                    sendStartSessionOverHttp();
+                }
+            }
+        };
+    }
+
+    /*
+     * Sends start_session over HTTP, offering binary telemetry in the
+     * Accept header.
+     */
+    private void sendStartSessionOverHttp(){
+        try {
+
+            URL url = new URL("http://"+hostIP+":"+port+"/"+startSessionEndpoint);
+            HttpURLConnection connection = requestTracker.open(url, startSessionEndpoint, UascRequestTracker.Deadline.COMMAND);
+            String serverMessage;
+            try {
+                connection.setRequestProperty("Accept", TelemetryCodec.CONTENT_TYPE + ", application/json");
+                serverMessage = readStreamToString(connection.getInputStream());
+            } finally {
+                requestTracker.finish(connection);
+            }
+
+            JSONObject jsonObject = new JSONObject(serverMessage);
+
+            handleStartSessionResponse(jsonObject);
+
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            requestTracker.onRequestFailed(startSessionEndpoint, e);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
     }
 
     private void initializeEndSession(){
@@ -471,15 +1312,25 @@ public class UASCClient {
 
                 try {
 
+                    if(sendCommandOverStreamLink(endSessionEndpoint, new JSONObject())){
+                        return;
+                    }
+
                     URL url = new URL("http://"+hostIP+":"+port+"/"+endSessionEndpoint);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    HttpURLConnection connection = requestTracker.open(url, endSessionEndpoint, UascRequestTracker.Deadline.COMMAND);
 
                     //Sever detects this as hitting the endpoint
-                    connection.getResponseCode();
+                    try {
+                        connection.getResponseCode();
+                    } finally {
+                        requestTracker.finish(connection);
+                    }
 
                 } catch (MalformedURLException e) {
                     e.printStackTrace();
                 } catch (IOException e) {
+                    requestTracker.onRequestFailed(endSessionEndpoint, e);
+                } catch (JSONException e) {
                     e.printStackTrace();
                 }
 
@@ -487,52 +1338,178 @@ public class UASCClient {
         };
     }
 
-    private void initializeNewWaypoint(final Location waypoint){
+    private void sendBinaryWaypoint(Location waypoint) throws IOException {
+        synchronized (waypointBuffer) {
+            TelemetryCodec.encode(TelemetryCodec.TYPE_WAYPOINT, waypoint, waypointBuffer, 0);
+            if(sendOverStreamLink(UascStreamLink.FRAME_WAYPOINT, waypointBuffer)){
+                Log.d(TAG,"Sent binary waypoint over stream link.");
+                return;
+            }
+
+            postBinaryWaypoint(waypointBuffer);
+        }
+    }
+
+    private void postBinaryWaypoint(byte[] message) throws IOException {
+        URL url = new URL("http://"+hostIP+":"+port+"/"+newWaypointEndpoint);
+        HttpURLConnection connection = requestTracker.open(url, newWaypointEndpoint, UascRequestTracker.Deadline.COMMAND);
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", TelemetryCodec.CONTENT_TYPE);
+            connection.setFixedLengthStreamingMode(message.length);
+
+            OutputStream outputStream = connection.getOutputStream();
+            outputStream.write(message);
+            outputStream.close();
+
+            Log.d(TAG,"WaypointEndpoint Responce Code: " +connection.getResponseCode());
+        } finally {
+            requestTracker.finish(connection);
+        }
+    }
+
+    private void initializeNewWaypoint(){
         newWaypointRunnable = new Runnable() {
             @Override
             public void run() {
+                //Keep sending until nothing newer is waiting, so there is
+                //only ever one waypoint in flight.
+                WaypointQueue.Entry waypointEntry;
+                while((waypointEntry = waypointQueue.take()) != null){
+                    sendWaypoint(waypointEntry.getWaypoint());
+                }
 
+                newWaypointScheduled.set(false);
+                if(waypointQueue.isPending() && newWaypointScheduled.compareAndSet(false, true)){
+                    scheduler.post(UascScheduler.Lane.COMMAND, this);
+                }
+            }
+        };
+    }
 
+    private JSONObject waypointToJson(Location waypoint) throws JSONException {
+        //Construct the json message
+        String latitude = Location.convert(waypoint.getLatitude(),Location.FORMAT_DEGREES);
+        String longitude = Location.convert(waypoint.getLongitude(),Location.FORMAT_DEGREES);
+        double altitude = waypoint.getAltitude();
 
-                try {
+        JSONObject object = new JSONObject();
+        object.put(ALTITUDE,altitude);
+        object.put(LONGITUDE,longitude);
+        object.put(LATITUDE,latitude);
 
-                    URL url = new URL("http://"+hostIP+":"+port+"/"+newWaypointEndpoint);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("POST");
-                    connection.setDoOutput(true);
-                    connection.setRequestProperty("Content-Type", "application/json");
+        return object;
+    }
 
-                    //Construct the json message
-                    String latitude = Location.convert(waypoint.getLatitude(),Location.FORMAT_DEGREES);
-                    String longitude = Location.convert(waypoint.getLongitude(),Location.FORMAT_DEGREES);
-                    double altitude = waypoint.getAltitude();
+    private void sendWaypoint(Location waypoint){
+        try {
 
-                    JSONObject object = new JSONObject();
-                    object.put(ALTITUDE,altitude);
-                    object.put(LONGITUDE,longitude);
-                    object.put(LATITUDE,latitude);
+            if(binaryTelemetry){
+                sendBinaryWaypoint(waypoint);
+                return;
+            }
 
-                    String msg = object.toString();
+            JSONObject object = waypointToJson(waypoint);
 
-                    Log.d(TAG,"Sending waypoint:" + msg);
+            if(sendCommandOverStreamLink(newWaypointEndpoint, object)){
+                Log.d(TAG,"Sent waypoint over stream link.");
+                return;
+            }
 
-                    //Send the json message to the server (UASC)
-                    OutputStreamWriter outputStreamWriter = new OutputStreamWriter(connection.getOutputStream());
-                    outputStreamWriter.write(msg);
-                    outputStreamWriter.flush();
-                    outputStreamWriter.close();
+            URL url = new URL("http://"+hostIP+":"+port+"/"+newWaypointEndpoint);
+            HttpURLConnection connection = requestTracker.open(url, newWaypointEndpoint, UascRequestTracker.Deadline.COMMAND);
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
 
-                    Log.d(TAG,"WaypointEndpoint Responce Code: " +connection.getResponseCode());
+                String msg = object.toString();
 
-                } catch (MalformedURLException e) {
-                    Log.e(TAG,e.getMessage());
-                } catch (IOException e) {
-                    Log.e(TAG,e.getMessage());
-                } catch (JSONException e) {
-                    Log.e(TAG,e.getMessage());
+                Log.d(TAG,"Sending waypoint:" + msg);
+
+                //Send the json message to the server (UASC)
+                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(connection.getOutputStream());
+                outputStreamWriter.write(msg);
+                outputStreamWriter.flush();
+                outputStreamWriter.close();
+
+                Log.d(TAG,"WaypointEndpoint Responce Code: " +connection.getResponseCode());
+            } finally {
+                requestTracker.finish(connection);
+            }
+
+        } catch (MalformedURLException e) {
+            Log.e(TAG,e.getMessage());
+        } catch (IOException e) {
+            requestTracker.onRequestFailed(newWaypointEndpoint, e);
+        } catch (JSONException e) {
+            Log.e(TAG,e.getMessage());
+        }
+
+    }
+
+    private class UASCStreamLinkListener implements UascStreamLink.Listener {
+        @Override
+        public void onFrameReceived(int type, byte[] payload) {
+            try {
+                switch (type) {
+                    case UascStreamLink.FRAME_HEARTBEAT:
+                        Log.d(TAG,"Heartbeat acknowledged over stream link.");
+                        break;
+                    case UascStreamLink.FRAME_TELEMETRY:
+                        onStreamLinkReply(RequestType.GPS, linkTelemetryRequestStart, payload.length);
+                        if (binaryTelemetry) {
+                            handleUasLocationMessage(payload, payload.length);
+                        } else {
+                            handleUasLocationMessage(new String(payload, UTF_8));
+                        }
+                        break;
+                    case UascStreamLink.FRAME_IMAGE:
+                        //Before the hand off, so the round trip does not include decoding
+                        onStreamLinkReply(RequestType.IMAGE, linkImageRequestStart, payload.length);
+                        handleImageFrame(payload);
+                        break;
+                    case UascStreamLink.FRAME_COMMAND_ACK:
+                        JSONObject ack = new JSONObject(new String(payload, UTF_8));
+                        String endpoint = ack.getString(ENDPOINT);
+                        if (endpoint.equals(startSessionEndpoint)) {
+                            //An ack after the timeout was already answered over HTTP
+                            if (awaitingStartSessionAck.getAndSet(false)) {
+                                handleStartSessionResponse(ack);
+                            }
+                        } else {
+                            Log.d(TAG,"Command acknowledged over stream link: " + endpoint);
+                        }
+                        break;
+                    default:
+                        Log.w(TAG,"onFrameReceived: default: type=" + type);
+                        break;
                 }
+            } catch (JSONException e) {
+                Log.e(TAG,e.getMessage());
+            }
+        }
 
+        @Override
+        public void onLinkClosed() {
+            Log.w(TAG,"Stream link closed, falling back to HTTP endpoints.");
+        }
+    }
+
+    //Only called on the channel's receiver thread
+    private class UASCTelemetryListener implements UdpTelemetryChannel.Listener {
+        private long lastNotifyTime = 0;
+
+        @Override
+        public void onPositionReceived(Location location) {
+            long now = SystemClock.elapsedRealtime();
+            if (lastNotifyTime == 0 || now - lastNotifyTime >= UDP_TELEMETRY_NOTIFY_INTERVAL) {
+                lastNotifyTime = now;
+                setLatestUasLocation(location);
+            } else {
+                latestUASLocation = location;
             }
-        };
+        }
     }
 }
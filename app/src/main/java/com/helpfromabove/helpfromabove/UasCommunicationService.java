@@ -5,7 +5,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.graphics.Bitmap;
 import android.location.Location;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
@@ -44,13 +43,33 @@ public class UasCommunicationService extends Service {
     private UASCClient uascClient;
     private final String uascIP = "192.168.49.187";
     private final String port = "5000";
+    //Framed socket used by the UASCClient instead of HTTP when available
+    private final int streamPort = 5001;
+    private final int telemetryPort = 5002;
     private final String imageEndpoint = "static/img/img.jpeg";
+    private final String imageStreamEndpoint = "image_stream";
     private final String gpsReceiveEndpoint = "request_location";
     private final String gpsSendEndpoint = "update_location";
     private final String startEndpoint = "start_session";
     private final String endEndpoint = "end_session";
     private final String lightEndpoint = "toggle_light";
     private final String emergencyEndpoint = "emergency";
+    private final String exchangeEndpoint = "exchange";
+
+    //Bounds in milliseconds for the adaptive image and GPS polling rates
+    private static final int IMAGE_ACCESS_DELAY_MIN = 200;
+    private static final int IMAGE_ACCESS_DELAY_MAX = 5000;
+    private static final int IMAGE_ACCESS_DELAY_INITIAL = 1000;
+    private static final int GPS_ACCESS_DELAY_MIN = 500;
+    private static final int GPS_ACCESS_DELAY_MAX = 10000;
+    private static final int GPS_ACCESS_DELAY_INITIAL = 5000;
+    private final AdaptivePollingController pollingController = new AdaptivePollingController(
+            IMAGE_ACCESS_DELAY_MIN, IMAGE_ACCESS_DELAY_MAX, IMAGE_ACCESS_DELAY_INITIAL,
+            GPS_ACCESS_DELAY_MIN, GPS_ACCESS_DELAY_MAX, GPS_ACCESS_DELAY_INITIAL);
+    //Size of the view showing UAS images, 0 for full resolution
+    private int imageDisplayWidth = 0;
+    private int imageDisplayHeight = 0;
+    private UASCClient.FrameListener frameListener;
 
 
     public UasCommunicationService() {
@@ -83,6 +102,7 @@ public class UasCommunicationService extends Service {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(broadcastReceiver);
+        closeUascClient();
     }
 
     @Nullable
@@ -145,6 +165,9 @@ public class UasCommunicationService extends Service {
             this.networkInfo = networkInfo;
             this.wifiP2pGroup = wifiP2pGroup;
 
+            //The old client's threads are stopped before it is replaced
+            closeUascClient();
+
             //If connecting to the UASC use its IP
             if (connectedOnce) {
                 uascClient = new UASCClient(getApplicationContext(), "192.168.49.187", port);
@@ -153,6 +176,7 @@ public class UasCommunicationService extends Service {
                 uascClient = new UASCClient(getApplicationContext(), wifiP2pInfo.groupOwnerAddress.getHostAddress(), port);
                 CommandService.notifyWifiP2pConnected(getApplicationContext());
             }
+            configureUascClient();
 
             Log.i(TAG, "----------------------------------------");
             Log.i(TAG, "HHMD and UASC Connected");
@@ -167,10 +191,19 @@ public class UasCommunicationService extends Service {
 
 
             startHeartbeat();
+            startStreamLink();
+            uascClient.startUdpTelemetry(telemetryPort);
         } else {
             if (uascClient != null) {
                 uascClient.stopHeartbeat();
                 uascClient.stopImageAccess();
+                //The UASC is gone, so waiting commands are dropped rather than sent
+                uascClient.stopGPSAccess(false);
+                uascClient.stopStreamLink();
+                uascClient.stopUdpTelemetry();
+                //Nothing in flight can reach the UASC anymore
+                uascClient.cancelRequests();
+                Log.d(TAG, "UASC request timeouts: " + uascClient.getTimeoutCounts());
             }
         }
     }
@@ -179,6 +212,23 @@ public class UasCommunicationService extends Service {
         uascClient.startHeartbeat(10000);
     }
 
+    private void startStreamLink() {
+        uascClient.startStreamLink(streamPort);
+    }
+
+    //Carries the UI's settings over to a new client
+    private void configureUascClient() {
+        uascClient.setImageDisplaySize(imageDisplayWidth, imageDisplayHeight);
+        uascClient.setFrameListener(frameListener);
+    }
+
+    private void closeUascClient() {
+        if (uascClient != null) {
+            uascClient.close();
+            uascClient = null;
+        }
+    }
+
     private void initUascClient() {
         WifiP2pDevice groupOwner = wifiP2pGroup.getOwner();
 
@@ -188,12 +238,16 @@ public class UasCommunicationService extends Service {
             //This most likely means they are trying to connect to the wrong device
             //TODO: Notify the user they are connected to the device incorrectly and to reconnect the correct way.
         } else if (groupOwner.toString().contains("HFA")) {
+            closeUascClient();
             uascClient = new UASCClient(getApplicationContext(), uascIP, port);
+            configureUascClient();
             CommandService.notifyWifiP2pConnected(getApplicationContext());
         }
         //Used for testing server connection
         else {
+            closeUascClient();
             uascClient = new UASCClient(getApplicationContext(), wifiP2pInfo.groupOwnerAddress.getHostAddress(), port);
+            configureUascClient();
             CommandService.notifyWifiP2pConnected(getApplicationContext());
         }
 
@@ -205,8 +259,11 @@ public class UasCommunicationService extends Service {
 
     protected void onLocationCalibrationComplete() {
         if (uascClient != null) {
-            uascClient.startImageAccess(imageEndpoint, 1000);
-            uascClient.startGPSAccess(gpsReceiveEndpoint, 5000);
+            pollingController.reset();
+            uascClient.setRequestStatsListener(new UasRequestStatsListener(uascClient));
+            uascClient.setExchangeEndpoint(exchangeEndpoint);
+            uascClient.startImageStream(imageStreamEndpoint, imageEndpoint, pollingController.getImageAccessDelay());
+            uascClient.startGPSAccess(gpsReceiveEndpoint, pollingController.getGpsAccessDelay());
         }
     }
 
@@ -227,9 +284,39 @@ public class UasCommunicationService extends Service {
             uascClient.sendNewWaypoint(gpsSendEndpoint, waypoint);
     }
 
-    public Bitmap getNewImage() {
+    /*
+     * Returns true if the offset was added to a waypoint that has not been
+     * sent yet, false if it needs to go into the next waypoint instead.
+     */
+    protected boolean foldAltitudeOffset(int altitudeOffset) {
+        return (uascClient != null) && uascClient.foldAltitudeOffset(altitudeOffset);
+    }
+
+    protected void setUasImageVisible(boolean visible) {
+        pollingController.setUiVisible(visible);
+    }
+
+    protected void setFrameListener(UASCClient.FrameListener frameListener) {
+        this.frameListener = frameListener;
+        if (uascClient != null) {
+            uascClient.setFrameListener(frameListener);
+        }
+    }
+
+    protected void setUasImageDisplaySize(int width, int height) {
+        imageDisplayWidth = width;
+        imageDisplayHeight = height;
         if (uascClient != null) {
-            return uascClient.getImageBitmap();
+            uascClient.setImageDisplaySize(width, height);
+        }
+    }
+
+    /*
+     * The caller must release the frame.
+     */
+    public UasFrame acquireFrame(long sequence) {
+        if (uascClient != null) {
+            return uascClient.acquireFrame(sequence);
         } else {
             return null;
         }
@@ -249,6 +336,30 @@ public class UasCommunicationService extends Service {
         }
     }
 
+    private class UasRequestStatsListener implements UASCClient.RequestStatsListener {
+        private final UASCClient client;
+
+        UasRequestStatsListener(UASCClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public void onRequestComplete(UASCClient.RequestType type, long roundTripMillis, int payloadBytes, boolean success) {
+            int delay = pollingController.onRequestComplete(type, roundTripMillis, payloadBytes, success);
+            switch (type) {
+                case IMAGE:
+                    client.setImageAccessDelay(delay);
+                    break;
+                case GPS:
+                    client.setGPSAccessDelay(delay);
+                    break;
+                default:
+                    Log.w(TAG, "onRequestComplete: default: type=" + type);
+                    break;
+            }
+        }
+    }
+
     private class UasCommunicationServiceBroadcastReceiver extends BroadcastReceiver {
         private static final String TAG = "Uas...BroadcastReceiver";
 
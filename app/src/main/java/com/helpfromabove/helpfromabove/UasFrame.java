@@ -0,0 +1,130 @@
+package com.helpfromabove.helpfromabove;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One image from the UAS, as the encoded bytes the UASC sent and the
+ * decoded Bitmap. The Bitmap is set once the frame has been decoded,
+ * which happens on another thread than the one that fetched it.
+ * <p>
+ * The encoded bytes may be in a ByteBufferPool buffer and the Bitmap
+ * may be reused from a BitmapPool, so a frame is reference counted.
+ * Whoever is handed a frame must release it once it is done with it,
+ * and retain it first if it keeps the frame past that. The buffer and
+ * Bitmap go back to their pools when the last reference is released.
+ */
+
+public class UasFrame {
+    private static final String TAG = "UasFrame";
+
+    private final ByteBuffer encodedBytes;
+    private final ByteBufferPool pool;
+    private volatile Bitmap bitmap;
+    private volatile BitmapPool bitmapPool;
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+    private volatile long sequence = 0;
+    private final long receivedTime = System.currentTimeMillis();
+
+    /*
+     * encodedBytes is read from its position to its limit. pool is null
+     * if the buffer should not go back to one.
+     */
+    protected UasFrame(ByteBuffer encodedBytes, ByteBufferPool pool) {
+        this.encodedBytes = encodedBytes;
+        this.pool = pool;
+    }
+
+    /*
+     * Returns null until the frame has been decoded.
+     */
+    protected Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /*
+     * Called once, before the frame is handed to anyone else. bitmapPool
+     * is null if the Bitmap should not go back to one.
+     */
+    protected void setBitmap(Bitmap bitmap, BitmapPool bitmapPool) {
+        this.bitmap = bitmap;
+        this.bitmapPool = bitmapPool;
+    }
+
+    /*
+     * Returns a read only view of the encoded bytes that shares the
+     * frame's buffer, valid until the frame is released.
+     */
+    protected ByteBuffer getEncodedBytes() {
+        return encodedBytes.asReadOnlyBuffer();
+    }
+
+    /*
+     * Decodes a new copy of the image from the encoded bytes, for when the
+     * frame's Bitmap is too small. A requested size of 0 is full
+     * resolution. The caller must release the Bitmap to the pool.
+     */
+    protected Bitmap decodeBitmap(BitmapPool bitmapPool, int requestedWidth, int requestedHeight) {
+        return bitmapPool.decode(encodedBytes.array(), encodedBytes.arrayOffset() + encodedBytes.position(),
+                encodedBytes.remaining(), requestedWidth, requestedHeight);
+    }
+
+    protected int getEncodedLength() {
+        return encodedBytes.remaining();
+    }
+
+    /*
+     * Wall clock time the frame arrived from the UASC.
+     */
+    protected long getReceivedTime() {
+        return receivedTime;
+    }
+
+    protected long getSequence() {
+        return sequence;
+    }
+
+    protected void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    protected UasFrame retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("UasFrame retained after it was released");
+        }
+        return this;
+    }
+
+    /*
+     * Returns false, without retaining, if the last reference was already
+     * released. A released frame can never be brought back.
+     */
+    protected boolean tryRetain() {
+        int count;
+        do {
+            count = referenceCount.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!referenceCount.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    protected void release() {
+        int count = referenceCount.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.release(encodedBytes);
+            }
+            if (bitmapPool != null && bitmap != null) {
+                bitmapPool.release(bitmap);
+            }
+        } else if (count < 0) {
+            Log.w(TAG, "release: UasFrame released too many times");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens every HTTP connection to the UASC with a Deadline and keeps track
+ * of the ones in flight so they can be cancelled.
+ * <p>
+ * The connect and read timeouts bound each blocking call, and the total
+ * deadline bounds the whole request so a UASC that trickles out a
+ * response can not hold a scheduler thread either. A request past its
+ * deadline, or one that is cancelled, is disconnected, which makes the
+ * blocked call on its thread throw an IOException.
+ * Timeouts are counted per endpoint.
+ */
+
+public class UascRequestTracker {
+    private static final String TAG = "UascRequestTracker";
+
+    protected enum Deadline {
+        COMMAND(2000, 4000, 5000),
+        HEARTBEAT(2000, 3000, 4000),
+        TELEMETRY(1500, 2500, 3000),
+        IMAGE(2000, 5000, 8000),
+        //The stream stays open, so there is only a limit between frames
+        IMAGE_STREAM(3000, 5000, 0);
+
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final int totalDeadline;
+
+        Deadline(int connectTimeout, int readTimeout, int totalDeadline) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.totalDeadline = totalDeadline;
+        }
+    }
+
+    private final UascScheduler scheduler;
+    private final ConcurrentHashMap<HttpURLConnection, InFlightRequest> inFlightRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> timeoutCounts = new ConcurrentHashMap<>();
+
+    protected UascRequestTracker(UascScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /*
+     * Every connection opened here must be given back to finish once the
+     * request is done with it.
+     */
+    protected HttpURLConnection open(URL url, String endpoint, Deadline deadline) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(deadline.connectTimeout);
+        connection.setReadTimeout(deadline.readTimeout);
+
+        InFlightRequest request = new InFlightRequest(connection, endpoint, deadline);
+        inFlightRequests.put(connection, request);
+        if (deadline.totalDeadline > 0) {
+            scheduler.postTimer(request, deadline.totalDeadline);
+        }
+
+        return connection;
+    }
+
+    protected void finish(HttpURLConnection connection) {
+        InFlightRequest request = inFlightRequests.remove(connection);
+        if (request != null) {
+            scheduler.removeTimer(request);
+        }
+        connection.disconnect();
+    }
+
+    /*
+     * Logs a failed request, counting it if it failed because the UASC
+     * took too long.
+     */
+    protected void onRequestFailed(String endpoint, IOException iOE) {
+        if (iOE instanceof SocketTimeoutException) {
+            countTimeout(endpoint);
+        } else {
+            Log.e(TAG, endpoint + ": " + iOE.getMessage());
+        }
+    }
+
+    protected void cancel(Deadline deadline) {
+        Iterator<InFlightRequest> iterator = inFlightRequests.values().iterator();
+        while (iterator.hasNext()) {
+            InFlightRequest request = iterator.next();
+            if (deadline == null || request.deadline == deadline) {
+                Log.d(TAG, "Cancelling request to " + request.endpoint);
+                finish(request.connection);
+            }
+        }
+    }
+
+    protected void cancelAll() {
+        cancel(null);
+    }
+
+    protected int getTimeoutCount(String endpoint) {
+        AtomicInteger count = timeoutCounts.get(endpoint);
+        return (count == null) ? 0 : count.get();
+    }
+
+    protected Map<String, Integer> getTimeoutCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : timeoutCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    private void countTimeout(String endpoint) {
+        AtomicInteger count = timeoutCounts.get(endpoint);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger(0);
+            count = timeoutCounts.putIfAbsent(endpoint, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        Log.w(TAG, "Request to " + endpoint + " timed out, " + count.incrementAndGet() + " timeouts so far");
+    }
+
+    //Runs on the scheduler's timer thread when the total deadline passes
+    private class InFlightRequest implements Runnable {
+        private final HttpURLConnection connection;
+        private final String endpoint;
+        private final Deadline deadline;
+
+        InFlightRequest(HttpURLConnection connection, String endpoint, Deadline deadline) {
+            this.connection = connection;
+            this.endpoint = endpoint;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (inFlightRequests.remove(connection) != null) {
+                countTimeout(endpoint);
+                connection.disconnect();
+            }
+        }
+    }
+}
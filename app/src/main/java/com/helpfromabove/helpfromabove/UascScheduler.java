@@ -0,0 +1,163 @@
+package com.helpfromabove.helpfromabove;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all of the UASCClient's work on one bounded pool of threads.
+ * <p>
+ * Work is posted to a Lane. When more work is ready than there are free
+ * threads, commands run before telemetry and telemetry runs before
+ * images. The pool has one more thread than there are repeating tasks,
+ * so a long image download can not hold up a command. The image stream
+ * reads for as long as the stream runs, so the STREAM lane has a thread
+ * of its own instead of holding one of the pool's. Delayed work waits on
+ * a single timer thread until it is due.
+ */
+
+public class UascScheduler {
+    private static final String TAG = "UascScheduler";
+
+    //Heartbeat, GPS access and image polling repeat, plus one for commands
+    private static final int POOL_SIZE = 4;
+
+    //Lanes are in priority order, highest first, STREAM is not in the pool
+    protected enum Lane {
+        COMMAND,
+        TELEMETRY,
+        IMAGE,
+        STREAM,
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor streamExecutor;
+    private final HandlerThread timerHandlerThread;
+    private final Handler timerHandler;
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    protected UascScheduler() {
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new UascThreadFactory("UASC-Scheduler-"), new ThreadPoolExecutor.DiscardPolicy());
+        streamExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new UascThreadFactory("UASC-Scheduler_Stream-"), new ThreadPoolExecutor.DiscardPolicy());
+
+        timerHandlerThread = new HandlerThread("UASC-Scheduler_Timer");
+        timerHandlerThread.start();
+        timerHandler = new Handler(timerHandlerThread.getLooper());
+    }
+
+    protected void post(Lane lane, Runnable runnable) {
+        ThreadPoolExecutor laneExecutor = (lane == Lane.STREAM) ? streamExecutor : executor;
+        laneExecutor.execute(new LaneTask(lane, runnable, sequence.getAndIncrement()));
+    }
+
+    protected void postDelayed(final Lane lane, final Runnable runnable, long delayMillis) {
+        if (delayMillis <= 0) {
+            post(lane, runnable);
+        } else {
+            //The runnable is the token so removeCallbacks can find it
+            timerHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    post(lane, runnable);
+                }
+            }, runnable, SystemClock.uptimeMillis() + delayMillis);
+        }
+    }
+
+    /*
+     * Runs the runnable on the timer thread itself, so it runs on time
+     * even when every pool thread is busy. It must not block.
+     */
+    protected void postTimer(Runnable runnable, long delayMillis) {
+        timerHandler.postAtTime(runnable, runnable, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    protected void removeTimer(Runnable runnable) {
+        timerHandler.removeCallbacksAndMessages(runnable);
+    }
+
+    /*
+     * Removes a runnable that is waiting on the timer or waiting for a
+     * thread. A runnable that is already running is not interrupted.
+     */
+    protected void removeCallbacks(Runnable runnable) {
+        timerHandler.removeCallbacksAndMessages(runnable);
+        removeQueued(executor, runnable);
+        removeQueued(streamExecutor, runnable);
+    }
+
+    protected void shutdown() {
+        timerHandler.removeCallbacksAndMessages(null);
+        timerHandlerThread.quit();
+        executor.shutdownNow();
+        streamExecutor.shutdownNow();
+        Log.d(TAG, "Scheduler shut down");
+    }
+
+    private static void removeQueued(ThreadPoolExecutor laneExecutor, Runnable runnable) {
+        Iterator<Runnable> iterator = laneExecutor.getQueue().iterator();
+        while (iterator.hasNext()) {
+            Runnable queued = iterator.next();
+            if ((queued instanceof LaneTask) && ((LaneTask) queued).runnable == runnable) {
+                laneExecutor.remove(queued);
+            }
+        }
+    }
+
+    private static class LaneTask implements Runnable, Comparable<LaneTask> {
+        private final Lane lane;
+        private final Runnable runnable;
+        private final long sequence;
+
+        LaneTask(Lane lane, Runnable runnable, long sequence) {
+            this.lane = lane;
+            this.runnable = runnable;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } catch (RuntimeException rE) {
+                //Keep one bad task from taking down the pool thread
+                Log.e(TAG, "Uncaught exception in " + lane + " task", rE);
+            }
+        }
+
+        @Override
+        public int compareTo(LaneTask other) {
+            int compare = lane.compareTo(other.lane);
+            if (compare == 0) {
+                //First in first out within a lane
+                compare = (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+            }
+            return compare;
+        }
+    }
+
+    private static class UascThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        UascThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+        }
+    }
+}
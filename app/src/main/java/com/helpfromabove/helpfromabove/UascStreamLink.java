@@ -0,0 +1,167 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A single long-lived TCP connection to the UASC that carries every
+ * message type as a length-prefixed frame:
+ * <p>
+ * [type : 1 byte][payload length : 4 bytes, big endian][payload]
+ * <p>
+ * Telemetry, commands and image frames are multiplexed over this one
+ * socket so they do not pay for a new TCP and HTTP handshake each time.
+ * Frames received from the UASC are handed to the Listener on the
+ * link's reader thread.
+ */
+
+public class UascStreamLink {
+    private static final String TAG = "UascStreamLink";
+
+    //Frame types, these must match the UASC
+    protected static final int FRAME_HEARTBEAT = 0x01;
+    protected static final int FRAME_TELEMETRY_REQUEST = 0x02;
+    protected static final int FRAME_TELEMETRY = 0x03;
+    protected static final int FRAME_COMMAND = 0x04;
+    protected static final int FRAME_COMMAND_ACK = 0x05;
+    protected static final int FRAME_IMAGE_REQUEST = 0x06;
+    protected static final int FRAME_IMAGE = 0x07;
+    //A TelemetryCodec waypoint, only sent when binary telemetry was negotiated
+    protected static final int FRAME_WAYPOINT = 0x08;
+
+    private static final int CONNECT_TIMEOUT = 3000;
+    //Anything bigger than this is a corrupt stream, not a real frame
+    private static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private final String hostIP;
+    private final int port;
+    private final Listener listener;
+
+    private Socket socket;
+    private DataOutputStream outputStream;
+    private Thread readerThread;
+    private volatile boolean connected = false;
+
+    protected interface Listener {
+        void onFrameReceived(int type, byte[] payload);
+
+        void onLinkClosed();
+    }
+
+    protected UascStreamLink(String hostIP, int port, Listener listener) {
+        this.hostIP = hostIP;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    /*
+     * Blocks until the socket is connected, so this must not be called
+     * from the main thread.
+     */
+    protected void connect() throws IOException {
+        final DataInputStream inputStream;
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(hostIP, port), CONNECT_TIMEOUT);
+
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException iOE) {
+            //Not connected, so close without telling the listener
+            try {
+                socket.close();
+            } catch (IOException closeIOE) {
+                Log.e(TAG, "connect: IOException: " + closeIOE.getMessage());
+            }
+            throw iOE;
+        }
+        connected = true;
+
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFrames(inputStream);
+            }
+        }, "UASC-Stream_Link");
+        readerThread.start();
+
+        Log.i(TAG, "Stream link connected to " + hostIP + ":" + port);
+    }
+
+    protected boolean isConnected() {
+        return connected;
+    }
+
+    protected void send(int type) throws IOException {
+        send(type, EMPTY_PAYLOAD);
+    }
+
+    protected synchronized void send(int type, byte[] payload) throws IOException {
+        if (!connected) {
+            throw new IOException("Stream link is not connected");
+        }
+
+        try {
+            outputStream.writeByte(type);
+            outputStream.writeInt(payload.length);
+            outputStream.write(payload);
+            outputStream.flush();
+        } catch (IOException iOE) {
+            close();
+            throw iOE;
+        }
+    }
+
+    protected void close() {
+        boolean wasConnected = connected;
+        connected = false;
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException iOE) {
+                Log.e(TAG, "close: IOException: " + iOE.getMessage());
+            }
+        }
+
+        if (wasConnected) {
+            Log.i(TAG, "Stream link closed");
+            listener.onLinkClosed();
+        }
+    }
+
+    private void readFrames(DataInputStream inputStream) {
+        try {
+            while (connected) {
+                int type = inputStream.readUnsignedByte();
+                int length = inputStream.readInt();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+
+                byte[] payload = new byte[length];
+                inputStream.readFully(payload);
+                listener.onFrameReceived(type, payload);
+            }
+        } catch (EOFException eOFE) {
+            Log.i(TAG, "readFrames: UASC closed the stream link");
+        } catch (IOException iOE) {
+            if (connected) {
+                Log.e(TAG, "readFrames: IOException: " + iOE.getMessage());
+            }
+        }
+
+        close();
+    }
+}
@@ -0,0 +1,200 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * Receives UAS positions that the UASC pushes over UDP.
+ * <p>
+ * The UASC sends to whoever last subscribed, so subscribe must be called
+ * again before the UASC forgets the subscription (the heartbeat does it).
+ * Every packet is a 4 byte big endian sequence number followed by a
+ * TelemetryCodec UAS position:
+ * [sequence : 4][TelemetryCodec message : 24]
+ * <p>
+ * A lost packet is simply skipped, the next one has a newer position.
+ * Duplicate and out of order packets are dropped so the position never
+ * goes back in time. Loss and jitter are measured as in RFC 3550, using
+ * the time in the position as the send time.
+ */
+
+public class UdpTelemetryChannel {
+    private static final String TAG = "UdpTelemetryChannel";
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int PACKET_LENGTH = HEADER_LENGTH + TelemetryCodec.MESSAGE_LENGTH;
+    private static final byte[] SUBSCRIBE_MESSAGE = {'S', 'U', 'B', 'T'};
+    //A bigger jump than this means the UASC restarted its sequence
+    private static final int MAX_SEQUENCE_GAP = 1000;
+    private static final int JITTER_GAIN = 16;
+
+    private final InetSocketAddress uascAddress;
+    private final Listener listener;
+
+    private DatagramSocket socket;
+    private Thread receiverThread;
+    private volatile boolean open = false;
+    //SystemClock.elapsedRealtime, so changing the wall clock can not make old positions fresh
+    private volatile long lastReceivedMillis = 0;
+
+    //Statistics, guarded by this
+    private boolean hasSequence = false;
+    private int lastSequence;
+    private long receivedCount;
+    private long lostCount;
+    private long discardedCount;
+    private long lastTransitMillis;
+    private double jitterMillis;
+
+    protected interface Listener {
+        void onPositionReceived(Location location);
+    }
+
+    protected static class Stats {
+        protected final long receivedCount;
+        protected final long lostCount;
+        protected final long discardedCount;
+        protected final double jitterMillis;
+
+        private Stats(long receivedCount, long lostCount, long discardedCount, double jitterMillis) {
+            this.receivedCount = receivedCount;
+            this.lostCount = lostCount;
+            this.discardedCount = discardedCount;
+            this.jitterMillis = jitterMillis;
+        }
+
+        protected double getLossRate() {
+            long expected = receivedCount + lostCount;
+            return (expected == 0) ? 0 : lostCount / (double) expected;
+        }
+
+        @Override
+        public String toString() {
+            return "received=" + receivedCount + ", lost=" + lostCount + ", discarded=" + discardedCount
+                    + ", loss=" + Math.round(getLossRate() * 100) + "%, jitter=" + Math.round(jitterMillis) + "ms";
+        }
+    }
+
+    protected UdpTelemetryChannel(String hostIP, int port, Listener listener) {
+        this.uascAddress = new InetSocketAddress(hostIP, port);
+        this.listener = listener;
+    }
+
+    protected void open() throws SocketException {
+        socket = new DatagramSocket();
+        open = true;
+
+        receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receivePackets();
+            }
+        }, "UASC-Udp_Telemetry");
+        receiverThread.start();
+
+        Log.i(TAG, "Listening for UDP telemetry on port " + socket.getLocalPort());
+    }
+
+    protected boolean isOpen() {
+        return open;
+    }
+
+    /*
+     * Asks the UASC to push positions to this socket. Blocks for as long
+     * as sending one datagram takes.
+     */
+    protected void subscribe() throws IOException {
+        if (open) {
+            socket.send(new DatagramPacket(SUBSCRIBE_MESSAGE, SUBSCRIBE_MESSAGE.length, uascAddress));
+        }
+    }
+
+    /*
+     * Returns true if a position was accepted in the last maxAgeMillis.
+     */
+    protected boolean isFresh(long maxAgeMillis) {
+        long received = lastReceivedMillis;
+        return open && received > 0 && (SystemClock.elapsedRealtime() - received) <= maxAgeMillis;
+    }
+
+    protected synchronized Stats getStats() {
+        return new Stats(receivedCount, lostCount, discardedCount, jitterMillis);
+    }
+
+    protected void close() {
+        if (open) {
+            open = false;
+            socket.close();
+            Log.i(TAG, "UDP telemetry closed: " + getStats());
+        }
+    }
+
+    private void receivePackets() {
+        byte[] buffer = new byte[PACKET_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        InetAddress uascInetAddress = uascAddress.getAddress();
+
+        while (open) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException iOE) {
+                if (open) {
+                    Log.e(TAG, "receivePackets: IOException: " + iOE.getMessage());
+                }
+                break;
+            }
+
+            if (packet.getLength() < PACKET_LENGTH || !packet.getAddress().equals(uascInetAddress)) {
+                continue;
+            }
+
+            int sequence = ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16)
+                    | ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+            Location location = new Location("");
+            if (!TelemetryCodec.decode(TelemetryCodec.TYPE_UAS_POSITION, buffer, HEADER_LENGTH, TelemetryCodec.MESSAGE_LENGTH, location)) {
+                Log.w(TAG, "Received invalid UDP telemetry packet.");
+                continue;
+            }
+
+            //The position's time is wall clock time, so the transit time is too
+            if (accept(sequence, System.currentTimeMillis() - location.getTime())) {
+                lastReceivedMillis = SystemClock.elapsedRealtime();
+                listener.onPositionReceived(location);
+            }
+        }
+
+        open = false;
+    }
+
+    private synchronized boolean accept(int sequence, long transitMillis) {
+        if (hasSequence) {
+            //Subtracting handles the sequence number wrapping around
+            int gap = sequence - lastSequence;
+            if (gap <= 0 && gap > -MAX_SEQUENCE_GAP) {
+                discardedCount++;
+                return false;
+            }
+            if (gap > 1 && gap <= MAX_SEQUENCE_GAP) {
+                lostCount += gap - 1;
+            }
+
+            long transitChange = Math.abs(transitMillis - lastTransitMillis);
+            jitterMillis += (transitChange - jitterMillis) / JITTER_GAIN;
+        }
+
+        hasSequence = true;
+        lastSequence = sequence;
+        lastTransitMillis = transitMillis;
+        receivedCount++;
+        return true;
+    }
+}
@@ -0,0 +1,154 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * Keeps track of which frames of a SessionFrameStore have been uploaded
+ * to the cloud, in uploads.journal next to the store, so uploads that
+ * had not finished when the app was killed can be picked up again.
+ * <p>
+ * A frame is stored before it is uploaded, so every frame in the store
+ * is waiting to be uploaded unless the journal says otherwise. The
+ * journal starts with MAGIC and the cloud folder the frames go to, then
+ * has the 4 byte index of each frame once it is uploaded. Records are
+ * only ever appended, and one cut short by a crash is dropped when the
+ * journal is opened again.
+ */
+
+public class UploadJournal {
+    private static final String TAG = "UploadJournal";
+
+    private static final String JOURNAL_FILE_NAME = "uploads.journal";
+    private static final int MAGIC = 0x48464A31;
+    private static final int RECORD_LENGTH = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+    private final BitSet uploaded = new BitSet();
+    private final String cloudFolder;
+
+    /*
+     * Opens the journal in the directory. A new journal is for
+     * cloudFolder, an existing one keeps the folder it was made for.
+     */
+    protected UploadJournal(File directory, String cloudFolder) throws IOException {
+        this(new File(directory, JOURNAL_FILE_NAME), cloudFolder, true);
+    }
+
+    private UploadJournal(File file, String cloudFolder, boolean create) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            if (create && channel.size() == 0) {
+                byte[] folder = cloudFolder.getBytes(UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(4 + 4 + folder.length);
+                header.putInt(MAGIC).putInt(folder.length).put(folder);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                this.cloudFolder = cloudFolder;
+            } else {
+                this.cloudFolder = readJournal();
+            }
+        } catch (IOException iOE) {
+            channel.close();
+            throw iOE;
+        }
+    }
+
+    /*
+     * Opens the journal an earlier session left in the directory. Throws
+     * an IOException if there is none or its header can not be read, an
+     * empty journal is never given a new header.
+     */
+    protected static UploadJournal open(File directory) throws IOException {
+        File file = new File(directory, JOURNAL_FILE_NAME);
+        if (!file.isFile()) {
+            throw new IOException("No upload journal in " + directory);
+        }
+
+        return new UploadJournal(file, null, false);
+    }
+
+    /*
+     * Returns true if directory has a journal in it.
+     */
+    protected static boolean exists(File directory) {
+        return new File(directory, JOURNAL_FILE_NAME).isFile();
+    }
+
+    protected String getCloudFolder() {
+        return cloudFolder;
+    }
+
+    protected synchronized boolean isUploaded(int index) {
+        return uploaded.get(index);
+    }
+
+    protected synchronized int getUploadedCount() {
+        return uploaded.cardinality();
+    }
+
+    protected synchronized void markUploaded(int index) throws IOException {
+        if (uploaded.get(index)) {
+            return;
+        }
+
+        record.clear();
+        record.putInt(index);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        uploaded.set(index);
+    }
+
+    protected synchronized void close() {
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException iOE) {
+            Log.e(TAG, "close: IOException: " + iOE.getMessage(), iOE);
+        }
+    }
+
+    private String readJournal() throws IOException {
+        ByteBuffer journal = ByteBuffer.allocate((int) channel.size());
+        channel.position(0);
+        while (journal.hasRemaining() && channel.read(journal) >= 0) {
+            //Keep reading
+        }
+        journal.flip();
+
+        if (journal.remaining() < 8 || journal.getInt() != MAGIC) {
+            throw new IOException("Not an upload journal");
+        }
+        int folderLength = journal.getInt();
+        if (folderLength < 0 || folderLength > journal.remaining()) {
+            throw new IOException("Upload journal header is cut short");
+        }
+        byte[] folder = new byte[folderLength];
+        journal.get(folder);
+
+        while (journal.remaining() >= RECORD_LENGTH) {
+            int index = journal.getInt();
+            if (index >= 0) {
+                uploaded.set(index);
+            }
+        }
+        long end = journal.position();
+        channel.truncate(end);
+        channel.position(end);
+
+        return new String(folder, UTF_8);
+    }
+}
@@ -0,0 +1,159 @@
+package com.helpfromabove.helpfromabove;
+
+import android.util.Log;
+
+/**
+ * Picks the JPEG quality and scale images are uploaded at, so uploads
+ * keep up with the frames being archived.
+ * <p>
+ * Each upload updates the smoothed upload size and throughput, and each
+ * archived frame the smoothed time between frames. From those, with
+ * concurrency uploads running at once, an upload may use up to
+ * MAX_LINK_SHARE of the time until concurrency more frames have arrived,
+ * which gives the number of bytes an image can be:
+ * - over that, the quality is lowered by QUALITY_STEP, and once it is at
+ *   minQuality the image is halved in size and the quality starts again
+ *   from the middle,
+ * - under RAISE_THRESHOLD of it, the quality and then the size are
+ *   raised the same way.
+ * A failed upload lowers them straight away. Otherwise changes are made
+ * at most every ADJUST_INTERVAL uploads, so each one is measured before
+ * the next.
+ */
+
+public class UploadQualityController {
+    private static final String TAG = "UploadQualityContro...";
+
+    //Weight of the newest sample in the smoothed values
+    private static final double SMOOTHING = 0.2;
+    private static final double MAX_LINK_SHARE = 0.8;
+    private static final double RAISE_THRESHOLD = 0.5;
+    private static final int QUALITY_STEP = 10;
+    private static final int ADJUST_INTERVAL = 3;
+
+    private final int minQuality;
+    private final int maxQuality;
+    private final int maxSampleSize;
+
+    private int concurrency = 1;
+    private int quality;
+    private int sampleSize;
+    private int uploadsSinceAdjust;
+    private double uploadBytes;
+    private double bytesPerMilli;
+    private double frameIntervalMillis;
+    private long lastFrameTime;
+
+    /*
+     * Images are scaled down by at most maxSampleSize, a power of two.
+     */
+    protected UploadQualityController(int minQuality, int maxQuality, int maxSampleSize) {
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.maxSampleSize = maxSampleSize;
+        reset();
+    }
+
+    protected synchronized void reset() {
+        quality = maxQuality;
+        sampleSize = 1;
+        uploadsSinceAdjust = 0;
+        uploadBytes = -1;
+        bytesPerMilli = -1;
+        frameIntervalMillis = -1;
+        lastFrameTime = 0;
+    }
+
+    protected synchronized void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    protected synchronized int getQuality() {
+        return quality;
+    }
+
+    protected synchronized int getSampleSize() {
+        return sampleSize;
+    }
+
+    /*
+     * Returns the most bytes an image should be to keep up, or -1 until
+     * there have been enough uploads and frames to tell.
+     */
+    protected synchronized long getTargetBytes() {
+        if (bytesPerMilli <= 0 || frameIntervalMillis <= 0) {
+            return -1;
+        }
+
+        return (long) (bytesPerMilli * frameIntervalMillis * concurrency * MAX_LINK_SHARE);
+    }
+
+    /*
+     * Called for every frame archived, with the time it arrived.
+     */
+    protected synchronized void onFrame(long receivedTime) {
+        if (lastFrameTime > 0 && receivedTime > lastFrameTime) {
+            frameIntervalMillis = smooth(frameIntervalMillis, receivedTime - lastFrameTime);
+        }
+        lastFrameTime = receivedTime;
+    }
+
+    protected synchronized void onUploadComplete(int bytes, long millis, boolean success) {
+        if (success) {
+            uploadBytes = smooth(uploadBytes, bytes);
+            bytesPerMilli = smooth(bytesPerMilli, bytes / (double) Math.max(millis, 1));
+        }
+
+        uploadsSinceAdjust++;
+        if (!success) {
+            lower();
+            return;
+        }
+        long targetBytes = getTargetBytes();
+        if (targetBytes <= 0 || uploadsSinceAdjust < ADJUST_INTERVAL) {
+            return;
+        }
+
+        if (uploadBytes > targetBytes) {
+            lower();
+        } else if (uploadBytes < targetBytes * RAISE_THRESHOLD) {
+            raise();
+        }
+    }
+
+    private void lower() {
+        int oldQuality = quality;
+        int oldSampleSize = sampleSize;
+        if (quality - QUALITY_STEP >= minQuality) {
+            quality -= QUALITY_STEP;
+        } else if (sampleSize * 2 <= maxSampleSize) {
+            sampleSize *= 2;
+            quality = (minQuality + maxQuality) / 2;
+        }
+        onAdjusted(oldQuality, oldSampleSize);
+    }
+
+    private void raise() {
+        int oldQuality = quality;
+        int oldSampleSize = sampleSize;
+        if (quality + QUALITY_STEP <= maxQuality) {
+            quality += QUALITY_STEP;
+        } else if (sampleSize > 1) {
+            sampleSize /= 2;
+            quality = (minQuality + maxQuality) / 2;
+        }
+        onAdjusted(oldQuality, oldSampleSize);
+    }
+
+    private void onAdjusted(int oldQuality, int oldSampleSize) {
+        uploadsSinceAdjust = 0;
+        if (quality != oldQuality || sampleSize != oldSampleSize) {
+            Log.d(TAG, "quality " + oldQuality + " -> " + quality + ", sample size " + oldSampleSize + " -> " + sampleSize
+                    + " (upload=" + (int) uploadBytes + "B, target=" + getTargetBytes() + "B)");
+        }
+    }
+
+    private static double smooth(double average, double sample) {
+        return (average < 0) ? sample : average + SMOOTHING * (sample - average);
+    }
+}
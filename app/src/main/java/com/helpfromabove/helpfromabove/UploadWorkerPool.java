@@ -0,0 +1,201 @@
+package com.helpfromabove.helpfromabove;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of worker threads running tasks from a bounded queue,
+ * for the CloudService's uploads and other cloud calls.
+ * <p>
+ * submit waits for room once the queue is full, so a slow cloud provider
+ * holds back whoever submits instead of the tasks, and whatever they
+ * hold on to, piling up. Callers that must not wait use trySubmit. The pool keeps counts of what it ran and how
+ * deep the queue got, and drain waits for everything submitted to finish
+ * before, for example, a session is closed.
+ */
+
+public class UploadWorkerPool {
+    private static final String TAG = "UploadWorkerPool";
+
+    private final String name;
+    private final int concurrency;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private volatile boolean running = true;
+
+    //Tasks submitted and not yet finished, queued or running
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private final AtomicLong completedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong busyMillis = new AtomicLong(0);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+    private final Object idleLock = new Object();
+
+    protected UploadWorkerPool(String name, int concurrency, int queueCapacity) {
+        this.name = name;
+        this.concurrency = concurrency;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < concurrency; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runTasks();
+                }
+            }, name + "-" + i).start();
+        }
+    }
+
+    /*
+     * Queues the task, waiting for room if the queue is full. Returns
+     * false if the task was not queued because the pool was shut down or
+     * the caller was interrupted.
+     */
+    protected boolean submit(Runnable task) {
+        if (!running) {
+            Log.w(TAG, name + ": task submitted after shutdown");
+            return false;
+        }
+
+        pendingCount.incrementAndGet();
+        try {
+            queue.put(task);
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            onTaskDone();
+            return false;
+        }
+        updateMaxQueueDepth();
+
+        return true;
+    }
+
+    /*
+     * Queues the task without waiting. Returns false if the queue is full
+     * or the pool was shut down.
+     */
+    protected boolean trySubmit(Runnable task) {
+        if (!running) {
+            Log.w(TAG, name + ": task submitted after shutdown");
+            return false;
+        }
+
+        pendingCount.incrementAndGet();
+        if (!queue.offer(task)) {
+            onTaskDone();
+            return false;
+        }
+        updateMaxQueueDepth();
+
+        return true;
+    }
+
+    private void updateMaxQueueDepth() {
+        int depth = queue.size();
+        int max;
+        do {
+            max = maxQueueDepth.get();
+        } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    /*
+     * Waits until every task submitted so far has finished, for at most
+     * timeoutMillis. Returns false if some had not.
+     */
+    protected boolean drain(long timeoutMillis) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (idleLock) {
+            while (pendingCount.get() > 0) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, name + ": drain timed out, " + getStats());
+                    return false;
+                }
+                try {
+                    idleLock.wait(remaining);
+                } catch (InterruptedException iE) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * Stops the workers once they finish the tasks they are running.
+     * Queued tasks are dropped.
+     */
+    protected void shutdown() {
+        running = false;
+
+        int dropped = 0;
+        while (queue.poll() != null) {
+            dropped++;
+            onTaskDone();
+        }
+        Log.i(TAG, getStats() + (dropped > 0 ? ", dropped=" + dropped : ""));
+    }
+
+    protected int getConcurrency() {
+        return concurrency;
+    }
+
+    protected int getQueueDepth() {
+        return queue.size();
+    }
+
+    protected int getActiveCount() {
+        return activeCount.get();
+    }
+
+    protected String getStats() {
+        long completed = completedCount.get();
+        return name + ": queued=" + queue.size() + ", active=" + activeCount.get() + ", completed=" + completed
+                + ", failed=" + failedCount.get() + ", maxQueued=" + maxQueueDepth.get()
+                + ", averageMillis=" + (completed == 0 ? 0 : busyMillis.get() / completed);
+    }
+
+    //Checks running at least once a second, so shutdown does not interrupt a task
+    private void runTasks() {
+        while (running) {
+            Runnable task;
+            try {
+                task = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException iE) {
+                break;
+            }
+            if (task == null) {
+                continue;
+            }
+
+            activeCount.incrementAndGet();
+            long start = SystemClock.elapsedRealtime();
+            try {
+                task.run();
+            } catch (RuntimeException rE) {
+                //Keep one failed task from stopping the worker
+                failedCount.incrementAndGet();
+                Log.e(TAG, name + ": uncaught exception running task", rE);
+            } finally {
+                busyMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+                completedCount.incrementAndGet();
+                activeCount.decrementAndGet();
+                onTaskDone();
+            }
+        }
+    }
+
+    private void onTaskDone() {
+        if (pendingCount.decrementAndGet() == 0) {
+            synchronized (idleLock) {
+                idleLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the newest waypoint waiting to be sent to the UASC, and any
+ * altitude offset the operator asked for while it was waiting.
+ * <p>
+ * A newer waypoint replaces the one waiting, but the altitude offset is
+ * kept apart from the waypoint and carried over to its replacement, so a
+ * height change is never lost because a new waypoint came in first. The
+ * offset is only added to the waypoint when it is taken to be sent.
+ */
+
+public class WaypointQueue {
+    private final AtomicReference<Entry> pending = new AtomicReference<>();
+
+    /*
+     * Takes over the waypoint, replacing any that is waiting. Returns
+     * true if a waiting waypoint was replaced.
+     */
+    protected boolean offer(Location waypoint) {
+        Entry current;
+        do {
+            current = pending.get();
+        } while (!pending.compareAndSet(current, new Entry(waypoint, (current == null) ? 0 : current.altitudeOffset)));
+
+        return current != null;
+    }
+
+    /*
+     * Adds altitudeOffset to the waypoint that is waiting. Returns false
+     * if there is no waypoint waiting.
+     */
+    protected boolean foldAltitudeOffset(double altitudeOffset) {
+        Entry current;
+        do {
+            current = pending.get();
+            if (current == null) {
+                return false;
+            }
+        } while (!pending.compareAndSet(current, new Entry(current.waypoint, current.altitudeOffset + altitudeOffset)));
+
+        return true;
+    }
+
+    /*
+     * Removes the waiting waypoint, with its altitude offset added, or
+     * returns null if there is none. Give it back with putBack if it
+     * could not be sent.
+     */
+    protected Entry take() {
+        Entry entry = pending.getAndSet(null);
+        if (entry != null) {
+            //Nothing else holds the waypoint once it is out of the queue
+            entry.waypoint.setAltitude(entry.waypoint.getAltitude() + entry.altitudeOffset);
+        }
+
+        return entry;
+    }
+
+    /*
+     * Returns a waypoint that could not be sent. If a newer one is waiting
+     * only the altitude offset is given back, to the newer one.
+     */
+    protected void putBack(Entry entry) {
+        entry.waypoint.setAltitude(entry.waypoint.getAltitude() - entry.altitudeOffset);
+
+        Entry current;
+        Entry merged;
+        do {
+            current = pending.get();
+            merged = (current == null) ? entry : new Entry(current.waypoint, current.altitudeOffset + entry.altitudeOffset);
+        } while (!pending.compareAndSet(current, merged));
+    }
+
+    protected boolean isPending() {
+        return pending.get() != null;
+    }
+
+    /*
+     * Drops the waiting waypoint and its offset. Returns true if there
+     * was one.
+     */
+    protected boolean clear() {
+        return pending.getAndSet(null) != null;
+    }
+
+    protected static class Entry {
+        private final Location waypoint;
+        private final double altitudeOffset;
+
+        private Entry(Location waypoint, double altitudeOffset) {
+            this.waypoint = waypoint;
+            this.altitudeOffset = altitudeOffset;
+        }
+
+        /*
+         * The waypoint to send, with the altitude offset added.
+         */
+        protected Location getWaypoint() {
+            return waypoint;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for AdaptivePollingController.
+ */
+public class AdaptivePollingControllerTest {
+    private static final UASCClient.RequestType IMAGE = UASCClient.RequestType.IMAGE;
+    private static final UASCClient.RequestType GPS = UASCClient.RequestType.GPS;
+
+    private final AdaptivePollingController controller = new AdaptivePollingController(100, 5000, 1000, 200, 5000, 1000);
+
+    @Test
+    public void delays_startAtInitial() throws Exception {
+        assertEquals(1000, controller.getImageAccessDelay());
+        assertEquals(1000, controller.getGpsAccessDelay());
+    }
+
+    @Test
+    public void fastLink_speedsUpGraduallyToMinDelay() throws Exception {
+        assertEquals(900, controller.onRequestComplete(IMAGE, 10, 1000, true));
+        assertEquals(810, controller.onRequestComplete(IMAGE, 10, 1000, true));
+        for (int i = 0; i < 50; i++) {
+            controller.onRequestComplete(IMAGE, 10, 1000, true);
+        }
+
+        assertEquals(100, controller.getImageAccessDelay());
+        //Each type has its own rate
+        assertEquals(1000, controller.getGpsAccessDelay());
+    }
+
+    @Test
+    public void failure_backsOffUpToMaxDelay() throws Exception {
+        assertEquals(2000, controller.onRequestComplete(GPS, 10, 0, false));
+        assertEquals(4000, controller.onRequestComplete(GPS, 10, 0, false));
+        assertEquals(5000, controller.onRequestComplete(GPS, 10, 0, false));
+    }
+
+    @Test
+    public void highErrorRate_keepsBackingOffAfterSuccess() throws Exception {
+        AdaptivePollingController wideController = new AdaptivePollingController(100, 100000, 1000, 100, 100000, 1000);
+        wideController.onRequestComplete(IMAGE, 10, 1000, false);
+        wideController.onRequestComplete(IMAGE, 10, 1000, false);
+
+        assertEquals(8000, wideController.onRequestComplete(IMAGE, 10, 1000, true));
+        //Once the error rate has come down it speeds up again
+        assertEquals(7200, wideController.onRequestComplete(IMAGE, 10, 1000, true));
+    }
+
+    @Test
+    public void slowRoundTrip_keepsDelayAboveIt() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            controller.onRequestComplete(IMAGE, 400, 1000, true);
+        }
+
+        assertEquals(600, controller.getImageAccessDelay());
+    }
+
+    @Test
+    public void hiddenUi_slowsImagesOnly() throws Exception {
+        controller.setUiVisible(false);
+        for (int i = 0; i < 50; i++) {
+            controller.onRequestComplete(IMAGE, 10, 1000, true);
+            controller.onRequestComplete(GPS, 10, 0, true);
+        }
+
+        assertEquals(300, controller.getImageAccessDelay());
+        assertEquals(200, controller.getGpsAccessDelay());
+    }
+
+    @Test
+    public void reset_restoresInitialDelays() throws Exception {
+        controller.onRequestComplete(IMAGE, 10, 0, false);
+        controller.onRequestComplete(GPS, 10, 0, false);
+
+        controller.reset();
+
+        assertEquals(1000, controller.getImageAccessDelay());
+        assertEquals(1000, controller.getGpsAccessDelay());
+    }
+}
@@ -0,0 +1,71 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ByteBufferPool bucket sizing and reuse.
+ */
+public class ByteBufferPoolTest {
+    private final ByteBufferPool pool = ByteBufferPool.getInstance();
+
+    @Test
+    public void acquire_roundsUpToBucket() throws Exception {
+        assertEquals(4096, pool.acquire(1).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(16 * 1024 * 1024, pool.acquire(16 * 1024 * 1024).capacity());
+    }
+
+    @Test
+    public void acquire_tooLargeIsNotPooled() throws Exception {
+        int length = 16 * 1024 * 1024 + 1;
+        ByteBuffer buffer = pool.acquire(length);
+        assertEquals(length, buffer.capacity());
+
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(length));
+    }
+
+    @Test
+    public void release_reusesClearedBuffer() throws Exception {
+        ByteBuffer buffer = pool.acquire(300 * 1024);
+        buffer.put((byte) 1).flip();
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire(260 * 1024);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        pool.release(reused);
+    }
+
+    @Test
+    public void release_ignoresForeignBuffers() throws Exception {
+        ByteBuffer foreign = ByteBuffer.allocate(20000);
+        pool.release(foreign);
+        assertNotSame(foreign, pool.acquire(20000));
+
+        //A bucket size, but not on the heap
+        ByteBuffer direct = ByteBuffer.allocateDirect(2 * 1024 * 1024);
+        pool.release(direct);
+        assertNotSame(direct, pool.acquire(2 * 1024 * 1024));
+    }
+
+    @Test
+    public void grow_keepsContents() throws Exception {
+        ByteBuffer buffer = pool.acquire(4096);
+        byte[] bytes = TestFiles.patternBytes(4096, 3);
+        buffer.put(bytes);
+
+        ByteBuffer larger = pool.grow(buffer, 4097);
+        assertEquals(8192, larger.capacity());
+        assertEquals(4096, larger.position());
+        larger.flip();
+        assertArrayEquals(bytes, TestFiles.toArray(larger));
+        pool.release(larger);
+    }
+}
@@ -0,0 +1,84 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for FrameSlot's sequence numbers and references.
+ */
+public class FrameSlotTest {
+    @Test
+    public void acquire_returnsPublishedFrame() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        assertNull(slot.acquire(FrameSlot.LATEST_SEQUENCE));
+
+        UasFrame first = newFrame();
+        UasFrame second = newFrame();
+        assertEquals(1, slot.publish(first));
+        assertEquals(2, slot.publish(second));
+        assertEquals(2, slot.getLatestSequence());
+
+        UasFrame acquired = slot.acquire(1);
+        assertSame(first, acquired);
+        assertEquals(1, acquired.getSequence());
+        acquired.release();
+        acquired = slot.acquire(FrameSlot.LATEST_SEQUENCE);
+        assertSame(second, acquired);
+        acquired.release();
+    }
+
+    @Test
+    public void publish_releasesFramesPushedOutOfTheRing() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        UasFrame first = newFrame();
+        slot.publish(first);
+
+        //The ring holds 4 frames, the fifth pushes out the first
+        for (int i = 0; i < 4; i++) {
+            slot.publish(newFrame());
+        }
+
+        assertNull(slot.acquire(1));
+        assertFalse(first.tryRetain());
+        UasFrame acquired = slot.acquire(2);
+        assertNotNull(acquired);
+        acquired.release();
+    }
+
+    @Test
+    public void acquiredFrame_outlivesThePush() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        UasFrame first = newFrame();
+        slot.publish(first);
+        UasFrame acquired = slot.acquire(1);
+
+        for (int i = 0; i < 4; i++) {
+            slot.publish(newFrame());
+        }
+
+        //Still held by the reader until it releases it
+        assertTrue(acquired.tryRetain());
+        acquired.release();
+        acquired.release();
+        assertFalse(first.tryRetain());
+    }
+
+    @Test
+    public void clear_releasesEveryFrame() throws Exception {
+        FrameSlot slot = new FrameSlot();
+        UasFrame frame = newFrame();
+        slot.publish(frame);
+
+        slot.clear();
+
+        assertNull(slot.acquire(1));
+        assertFalse(frame.tryRetain());
+    }
+
+    private static UasFrame newFrame() {
+        return new UasFrame(ByteBuffer.wrap(new byte[]{1, 2, 3}), null);
+    }
+}
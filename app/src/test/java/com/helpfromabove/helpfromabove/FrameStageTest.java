@@ -0,0 +1,199 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for FrameStage drop policies.
+ */
+public class FrameStageTest {
+    private static final int CAPACITY = 2;
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final List<Long> processed = new ArrayList<>();
+    private FrameStage stage;
+
+    @After
+    public void tearDown() throws Exception {
+        gate.countDown();
+        if (stage != null) {
+            stage.shutdown();
+        }
+    }
+
+    @Test
+    public void dropNewest_dropsOfferedFrame() throws Exception {
+        UasFrame[] frames = fillStalledStage(FrameStage.DropPolicy.DROP_NEWEST);
+
+        UasFrame extra = frame(4);
+        assertFalse(stage.offer(extra));
+        assertEquals(1, stage.getDroppedCount());
+        //Only the caller's reference is left
+        extra.release();
+        assertFalse(extra.tryRetain());
+
+        gate.countDown();
+        assertProcessed(1, 2, 3);
+        release(frames);
+    }
+
+    @Test
+    public void dropOldest_dropsQueuedFrame() throws Exception {
+        UasFrame[] frames = fillStalledStage(FrameStage.DropPolicy.DROP_OLDEST);
+
+        UasFrame extra = frame(4);
+        assertTrue(stage.offer(extra));
+        assertEquals(1, stage.getDroppedCount());
+        assertEquals(CAPACITY, stage.getQueueDepth());
+
+        gate.countDown();
+        assertProcessed(1, 3, 4);
+        extra.release();
+        release(frames);
+    }
+
+    @Test
+    public void block_waitsForRoom() throws Exception {
+        UasFrame[] frames = fillStalledStage(FrameStage.DropPolicy.BLOCK);
+
+        final UasFrame extra = frame(4);
+        final boolean[] offered = new boolean[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                offered[0] = stage.offer(extra);
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        gate.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(offered[0]);
+        assertProcessed(1, 2, 3, 4);
+        assertEquals(0, stage.getDroppedCount());
+        extra.release();
+        release(frames);
+    }
+
+    @Test
+    public void process_passesOnOnlyAcceptedFrames() throws Exception {
+        final List<Long> downstream = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(2);
+        FrameStage sink = new FrameStage("sink", CAPACITY, FrameStage.DropPolicy.BLOCK, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                synchronized (downstream) {
+                    downstream.add(frame.getSequence());
+                }
+                done.countDown();
+                return true;
+            }
+        });
+        stage = new FrameStage("filter", CAPACITY, FrameStage.DropPolicy.BLOCK, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                return frame.getSequence() % 2 == 0;
+            }
+        }).addDownstream(sink);
+        stage.start();
+
+        UasFrame[] frames = {frame(1), frame(2), frame(3), frame(4)};
+        for (UasFrame frame : frames) {
+            assertTrue(stage.offer(frame));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        synchronized (downstream) {
+            assertEquals(2, downstream.size());
+            assertEquals(Long.valueOf(2), downstream.get(0));
+            assertEquals(Long.valueOf(4), downstream.get(1));
+        }
+        release(frames);
+    }
+
+    @Test
+    public void offer_afterShutdown_dropsFrame() throws Exception {
+        stage = new FrameStage("stopped", CAPACITY, FrameStage.DropPolicy.BLOCK, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                return true;
+            }
+        });
+        stage.start();
+        stage.shutdown();
+
+        UasFrame frame = frame(1);
+        assertFalse(stage.offer(frame));
+        frame.release();
+        assertFalse(frame.tryRetain());
+    }
+
+    /*
+     * Starts a stage whose thread is stuck processing frame 1 until the
+     * gate opens, with frames 2 and 3 filling its queue.
+     */
+    private UasFrame[] fillStalledStage(FrameStage.DropPolicy dropPolicy) throws Exception {
+        stage = new FrameStage("test", CAPACITY, dropPolicy, new FrameStage.Processor() {
+            @Override
+            public boolean process(UasFrame frame) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException iE) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (processed) {
+                    processed.add(frame.getSequence());
+                    processed.notifyAll();
+                }
+                return true;
+            }
+        });
+        stage.start();
+
+        UasFrame[] frames = {frame(1), frame(2), frame(3)};
+        assertTrue(stage.offer(frames[0]));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertTrue(stage.offer(frames[1]));
+        assertTrue(stage.offer(frames[2]));
+        assertEquals(CAPACITY, stage.getQueueDepth());
+        return frames;
+    }
+
+    private void assertProcessed(long... sequences) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (processed) {
+            while (processed.size() < sequences.length && System.currentTimeMillis() < deadline) {
+                processed.wait(100);
+            }
+            assertEquals(sequences.length, processed.size());
+            for (int i = 0; i < sequences.length; i++) {
+                assertEquals(Long.valueOf(sequences[i]), processed.get(i));
+            }
+        }
+    }
+
+    private static UasFrame frame(long sequence) {
+        UasFrame frame = new UasFrame(ByteBuffer.wrap(new byte[]{(byte) sequence}), null);
+        frame.setSequence(sequence);
+        return frame;
+    }
+
+    private static void release(UasFrame[] frames) {
+        for (UasFrame frame : frames) {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for MjpegAviWriter. The video is parsed back chunk by
+ * chunk to check the RIFF lengths and the idx1 offsets.
+ */
+public class MjpegAviWriterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private File directory;
+    private SessionFrameStore store;
+
+    @Before
+    public void createStore() throws Exception {
+        directory = TestFiles.createTempDirectory("avi");
+        store = new SessionFrameStore(directory);
+    }
+
+    @After
+    public void deleteStore() throws Exception {
+        store.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void write_matchesLength() throws Exception {
+        appendFrames(3);
+
+        ByteBuffer avi = write();
+
+        assertEquals(MjpegAviWriter.getLength(store), avi.remaining());
+        assertEquals("RIFF", getFourCc(avi, 0));
+        assertEquals(avi.remaining() - 8, avi.getInt(4));
+        assertEquals("AVI ", getFourCc(avi, 8));
+    }
+
+    @Test
+    public void write_headersDescribeTheFrames() throws Exception {
+        appendFrames(3);
+
+        ByteBuffer avi = write();
+        int avih = findChunk(avi, "avih");
+
+        //Frames 100 ms apart
+        assertEquals(100000, avi.getInt(avih + 8));
+        assertEquals(3, avi.getInt(avih + 8 + 16));
+        assertEquals(WIDTH, avi.getInt(avih + 8 + 32));
+        assertEquals(HEIGHT, avi.getInt(avih + 8 + 36));
+        assertEquals("MJPG", getFourCc(avi, findChunk(avi, "strh") + 12));
+    }
+
+    @Test
+    public void write_indexPointsAtEachFrame() throws Exception {
+        //Odd lengths are padded to keep chunks on even offsets
+        int count = appendFrames(4);
+
+        ByteBuffer avi = write();
+        int movi = findChunk(avi, "movi");
+        int idx1 = findChunk(avi, "idx1");
+        assertEquals(count * 16, avi.getInt(idx1 + 4));
+        //The movi list runs from its fourcc up to idx1
+        assertEquals(idx1 - movi, avi.getInt(movi - 4));
+
+        for (int i = 0; i < count; i++) {
+            int entry = idx1 + 8 + i * 16;
+            assertEquals("00dc", getFourCc(avi, entry));
+            int chunk = movi + avi.getInt(entry + 8);
+            int length = avi.getInt(entry + 12);
+
+            assertEquals("00dc", getFourCc(avi, chunk));
+            assertEquals(length, avi.getInt(chunk + 4));
+            assertEquals(store.getFrameLength(i), length);
+            byte[] frame = new byte[length];
+            ((ByteBuffer) avi.duplicate().position(chunk + 8)).get(frame);
+            assertArrayEquals(TestFiles.toArray(store.readFrame(i)), frame);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void write_rejectsEmptyStore() throws Exception {
+        write();
+    }
+
+    //Returns the number of frames, alternately odd and even in length
+    private int appendFrames(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            store.append(ByteBuffer.wrap(jpegBytes(101 + i)), 1000 + i * 100);
+        }
+        return count;
+    }
+
+    private ByteBuffer write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = MjpegAviWriter.write(store, Channels.newChannel(out));
+        assertEquals(out.size(), written);
+        return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    //Start of image and a baseline start of frame marker, then filler
+    private static byte[] jpegBytes(int length) {
+        byte[] bytes = new byte[length];
+        byte[] header = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC0, 0x00, 0x11, 0x08,
+                (byte) (HEIGHT >> 8), (byte) HEIGHT, (byte) (WIDTH >> 8), (byte) WIDTH};
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        for (int i = header.length; i < length; i++) {
+            bytes[i] = (byte) (i + length);
+        }
+        return bytes;
+    }
+
+    //Walks the chunks and lists, returns where the fourcc starts
+    private static int findChunk(ByteBuffer avi, String fourCc) {
+        int position = 12;
+        while (position + 8 <= avi.limit()) {
+            String id = getFourCc(avi, position);
+            if (id.equals(fourCc)) {
+                return position;
+            }
+            if (id.equals("LIST")) {
+                if (getFourCc(avi, position + 8).equals(fourCc)) {
+                    return position + 8;
+                }
+                position += 12;
+            } else {
+                int length = avi.getInt(position + 4);
+                position += 8 + length + (length & 1);
+            }
+        }
+
+        fail("No " + fourCc + " chunk");
+        return -1;
+    }
+
+    private static String getFourCc(ByteBuffer buffer, int position) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) buffer.get(position + i);
+        }
+        return new String(chars);
+    }
+}
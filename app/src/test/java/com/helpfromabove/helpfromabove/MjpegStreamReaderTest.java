@@ -0,0 +1,120 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for MjpegStreamReader, on streams built in memory.
+ */
+public class MjpegStreamReaderTest {
+    private static final String BOUNDARY = "frame";
+
+    private final ByteBufferPool pool = ByteBufferPool.getInstance();
+
+    @Test
+    public void parseBoundary_readsParameter() throws Exception {
+        assertEquals("frame", MjpegStreamReader.parseBoundary("multipart/x-mixed-replace; boundary=frame"));
+        assertEquals("frame", MjpegStreamReader.parseBoundary("Multipart/X-Mixed-Replace;boundary=\"frame\"; charset=x"));
+        assertNull(MjpegStreamReader.parseBoundary("image/jpeg"));
+        assertNull(MjpegStreamReader.parseBoundary("multipart/x-mixed-replace"));
+        assertNull(MjpegStreamReader.parseBoundary(null));
+    }
+
+    @Test
+    public void readFrame_usesContentLength() throws Exception {
+        //A length that ends before the end of image marker is still used
+        byte[] jpeg = jpegBytes(false);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writePart(stream, jpeg, jpeg.length - 2);
+
+        MjpegStreamReader reader = newReader(stream);
+        ByteBuffer frame = reader.readFrame();
+        assertEquals(jpeg.length - 2, frame.remaining());
+        pool.release(frame);
+    }
+
+    @Test
+    public void readFrame_skipsThumbnailEndOfImage() throws Exception {
+        byte[] jpeg = jpegBytes(true);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writePart(stream, jpeg, -1);
+        writePart(stream, jpeg, -1);
+
+        MjpegStreamReader reader = newReader(stream);
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer frame = reader.readFrame();
+            assertArrayEquals(jpeg, TestFiles.toArray(frame));
+            pool.release(frame);
+        }
+        assertNull(reader.readFrame());
+    }
+
+    @Test
+    public void readFrame_returnsNullForCutShortFrame() throws Exception {
+        byte[] jpeg = jpegBytes(false);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writePart(stream, jpeg, -1);
+        ByteArrayOutputStream cutShort = new ByteArrayOutputStream();
+        cutShort.write(stream.toByteArray(), 0, stream.size() - 6);
+
+        assertNull(newReader(cutShort).readFrame());
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrame_rejectsPartThatIsNotJpeg() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writePart(stream, new byte[2048], -1);
+
+        newReader(stream).readFrame();
+    }
+
+    private MjpegStreamReader newReader(ByteArrayOutputStream stream) {
+        return new MjpegStreamReader(new ByteArrayInputStream(stream.toByteArray()), BOUNDARY, pool);
+    }
+
+    //A contentLength less than 0 leaves out the Content-Length header
+    private static void writePart(ByteArrayOutputStream stream, byte[] jpeg, int contentLength) throws IOException {
+        String headers = "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n"
+                + ((contentLength >= 0) ? "Content-Length: " + contentLength + "\r\n" : "") + "\r\n";
+        stream.write(headers.getBytes("US-ASCII"));
+        stream.write(jpeg);
+        stream.write("\r\n".getBytes("US-ASCII"));
+    }
+
+    /*
+     * A JPEG's marker structure around made up data: an APP1 segment,
+     * holding a whole thumbnail JPEG if withThumbnail, a DQT segment, and
+     * a scan with a stuffed 0xFF byte and a restart marker.
+     */
+    private static byte[] jpegBytes(boolean withThumbnail) throws IOException {
+        ByteArrayOutputStream app1 = new ByteArrayOutputStream();
+        app1.write("Exif\0\0".getBytes("US-ASCII"));
+        if (withThumbnail) {
+            app1.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0x00, 0x02, 0x11, (byte) 0xFF, (byte) 0xD9});
+        }
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        writeSegment(jpeg, 0xE1, app1.toByteArray());
+        writeSegment(jpeg, 0xDB, new byte[]{0x00, (byte) 0xD9});
+        writeSegment(jpeg, 0xDA, new byte[]{0x01, 0x02});
+        jpeg.write(new byte[]{0x12, (byte) 0xFF, 0x00, 0x34, (byte) 0xFF, (byte) 0xD0, 0x56});
+        jpeg.write(new byte[]{(byte) 0xFF, (byte) 0xD9});
+        return jpeg.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream jpeg, int marker, byte[] data) {
+        int length = data.length + 2;
+        jpeg.write(0xFF);
+        jpeg.write(marker);
+        jpeg.write(length >> 8);
+        jpeg.write(length);
+        jpeg.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,152 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for SessionFrameStore, in a temporary directory.
+ */
+public class SessionFrameStoreTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = TestFiles.createTempDirectory("frames");
+    }
+
+    @After
+    public void deleteDirectory() throws Exception {
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void append_readsBack() throws Exception {
+        SessionFrameStore store = new SessionFrameStore(directory);
+        assertEquals(0, store.append(ByteBuffer.wrap(TestFiles.patternBytes(100, 1)), 1000));
+        assertEquals(1, store.append(ByteBuffer.wrap(TestFiles.patternBytes(57, 2)), 2000));
+
+        assertEquals(2, store.getFrameCount());
+        assertEquals(57, store.getFrameLength(1));
+        assertEquals(2000, store.getReceivedTime(1));
+        assertArrayEquals(TestFiles.patternBytes(100, 1), TestFiles.toArray(store.readFrame(0)));
+        assertArrayEquals(TestFiles.patternBytes(57, 2), TestFiles.toArray(store.readFrame(1)));
+        store.close();
+    }
+
+    @Test
+    public void append_leavesBufferPosition() throws Exception {
+        SessionFrameStore store = new SessionFrameStore(directory);
+        ByteBuffer buffer = ByteBuffer.wrap(TestFiles.patternBytes(10, 3));
+        buffer.position(4);
+
+        store.append(buffer, 0);
+
+        assertEquals(4, buffer.position());
+        assertEquals(6, store.getFrameLength(0));
+        store.close();
+    }
+
+    @Test
+    public void reopen_dropsTruncatedIndexRecord() throws Exception {
+        SessionFrameStore store = new SessionFrameStore(directory);
+        for (int i = 0; i < 3; i++) {
+            store.append(ByteBuffer.wrap(TestFiles.patternBytes(20 + i, i)), i);
+        }
+        store.close();
+
+        //A crash part way through writing the last index record
+        RandomAccessFile index = new RandomAccessFile(new File(directory, "frames.idx"), "rw");
+        index.setLength(index.length() - 5);
+        index.close();
+
+        store = new SessionFrameStore(directory);
+        assertEquals(2, store.getFrameCount());
+        assertArrayEquals(TestFiles.patternBytes(21, 1), TestFiles.toArray(store.readFrame(1)));
+
+        //Appending carries on after the frames that were kept
+        assertEquals(2, store.append(ByteBuffer.wrap(TestFiles.patternBytes(30, 9)), 9));
+        store.close();
+
+        store = new SessionFrameStore(directory);
+        assertEquals(3, store.getFrameCount());
+        assertArrayEquals(TestFiles.patternBytes(20, 0), TestFiles.toArray(store.readFrame(0)));
+        assertArrayEquals(TestFiles.patternBytes(30, 9), TestFiles.toArray(store.readFrame(2)));
+        store.close();
+    }
+
+    @Test
+    public void append_startsNewSegmentWhenFull() throws Exception {
+        //Segments are 32 MB, so the third frame does not fit in the first
+        int length = 12 * 1024 * 1024;
+        SessionFrameStore store = new SessionFrameStore(directory);
+        for (int i = 0; i < 3; i++) {
+            store.append(ByteBuffer.wrap(TestFiles.patternBytes(length, i)), i);
+        }
+
+        assertTrue(new File(directory, "frames-0001.seg").isFile());
+        assertArrayEquals(TestFiles.patternBytes(length, 1), TestFiles.toArray(store.readFrame(1)));
+        assertArrayEquals(TestFiles.patternBytes(length, 2), TestFiles.toArray(store.readFrame(2)));
+        store.close();
+
+        //Finished segments are cut down to what was written
+        assertEquals(2L * length, new File(directory, "frames-0000.seg").length());
+        assertEquals(length, new File(directory, "frames-0001.seg").length());
+
+        store = new SessionFrameStore(directory);
+        assertEquals(3, store.getFrameCount());
+        assertArrayEquals(TestFiles.patternBytes(length, 2), TestFiles.toArray(store.readFrame(2)));
+        store.close();
+    }
+
+    @Test
+    public void reopen_trimsSegmentsLeftByKilledApp() throws Exception {
+        SessionFrameStore killed = new SessionFrameStore(directory);
+        killed.append(ByteBuffer.wrap(TestFiles.patternBytes(40, 1)), 0);
+        killed.append(ByteBuffer.wrap(TestFiles.patternBytes(50, 2)), 1);
+        //Never closed, and a next segment started without an indexed frame
+        assertTrue(new File(directory, "frames-0001.seg").createNewFile());
+
+        SessionFrameStore store = new SessionFrameStore(directory);
+        assertEquals(90, new File(directory, "frames-0000.seg").length());
+        assertFalse(new File(directory, "frames-0001.seg").exists());
+        assertEquals(2, store.getFrameCount());
+        assertArrayEquals(TestFiles.patternBytes(50, 2), TestFiles.toArray(store.readFrame(1)));
+        store.close();
+    }
+
+    @Test
+    public void exportFrame_thenDeleteFiles() throws Exception {
+        SessionFrameStore store = new SessionFrameStore(directory);
+        store.append(ByteBuffer.wrap(TestFiles.patternBytes(40, 1)), 0);
+        store.append(ByteBuffer.wrap(TestFiles.patternBytes(50, 2)), 1);
+        assertTrue(SessionFrameStore.exists(directory));
+
+        store.exportFrame(1, new File(directory, "b.jpg"));
+        store.exportFrame(0, new File(directory, "a.jpg"));
+        store.close();
+        store.deleteFiles();
+
+        assertFalse(SessionFrameStore.exists(directory));
+        String[] names = directory.list();
+        assertEquals(2, names.length);
+        assertArrayEquals(TestFiles.patternBytes(40, 1), TestFiles.readFile(new File(directory, "a.jpg")));
+        assertArrayEquals(TestFiles.patternBytes(50, 2), TestFiles.readFile(new File(directory, "b.jpg")));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readFrame_rejectsUnknownIndex() throws Exception {
+        SessionFrameStore store = new SessionFrameStore(directory);
+        try {
+            store.readFrame(0);
+        } finally {
+            store.close();
+        }
+    }
+}
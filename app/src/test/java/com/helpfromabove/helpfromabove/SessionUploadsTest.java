@@ -0,0 +1,125 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for SessionUploads, over a store and journal in a
+ * temporary directory.
+ */
+public class SessionUploadsTest {
+    private File directory;
+    private SessionFrameStore store;
+    private UploadJournal journal;
+
+    @Before
+    public void openStore() throws Exception {
+        directory = TestFiles.createTempDirectory("uploads");
+        store = new SessionFrameStore(directory);
+        journal = new UploadJournal(directory, "/folder");
+    }
+
+    @After
+    public void closeStore() throws Exception {
+        store.close();
+        journal.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void claim_handsOutEachFrameOnce() throws Exception {
+        SessionUploads uploads = new SessionUploads(store, journal, 0, 1000, 2, false);
+        assertNull(uploads.claim());
+
+        append(0, 10);
+        append(1, 10);
+        assertArrayEquals(new int[]{0, 1}, uploads.claim());
+        assertArrayEquals(new int[]{1, 2}, uploads.claim());
+        assertNull(uploads.claim());
+    }
+
+    @Test
+    public void claim_skipsUploadedFrames() throws Exception {
+        append(0, 10);
+        append(1, 10);
+        append(2, 10);
+        journal.markUploaded(0);
+        journal.markUploaded(1);
+
+        SessionUploads uploads = new SessionUploads(store, journal, 0, 1000, 1, false);
+        assertArrayEquals(new int[]{2, 3}, uploads.claim());
+    }
+
+    @Test
+    public void claim_waitsForBatchWindowOrBytes() throws Exception {
+        SessionUploads uploads = new SessionUploads(store, journal, 1000, 100, 1, false);
+        append(0, 10);
+        append(500, 10);
+        assertNull(uploads.claim());
+
+        append(1000, 10);
+        assertArrayEquals(new int[]{0, 3}, uploads.claim());
+
+        //Full before the window has passed
+        append(1100, 60);
+        append(1200, 60);
+        append(1300, 10);
+        assertArrayEquals(new int[]{3, 5}, uploads.claim());
+    }
+
+    @Test
+    public void stop_releasesLastBatch() throws Exception {
+        SessionUploads uploads = new SessionUploads(store, journal, 1000, 100, 1, false);
+        append(0, 10);
+        assertNull(uploads.claim());
+
+        assertFalse(uploads.stop());
+        assertArrayEquals(new int[]{0, 1}, uploads.claim());
+    }
+
+    @Test
+    public void startRunner_limitsRunners() throws Exception {
+        SessionUploads uploads = new SessionUploads(store, journal, 0, 1000, 2, false);
+        assertFalse("Nothing to claim", uploads.startRunner());
+
+        append(0, 10);
+        assertTrue(uploads.startRunner());
+        assertTrue(uploads.startRunner());
+        assertFalse(uploads.startRunner());
+        assertFalse(uploads.finishRunner());
+        assertTrue(uploads.startRunner());
+    }
+
+    @Test
+    public void lastRunner_closesStoppedSession() throws Exception {
+        SessionUploads uploads = new SessionUploads(store, journal, 0, 1000, 2, false);
+        append(0, 10);
+        assertTrue(uploads.startRunner());
+        assertTrue(uploads.startRunner());
+
+        assertFalse("Frames are still waiting", uploads.stop());
+        assertNotNull(uploads.claim());
+        assertFalse(uploads.finishRunner());
+        assertTrue(uploads.finishRunner());
+        assertFalse("Closed only once", uploads.startRunner());
+    }
+
+    @Test
+    public void stop_closesIdleSession() throws Exception {
+        SessionUploads uploads = new SessionUploads(store, journal, 0, 1000, 1, false);
+        append(0, 10);
+        journal.markUploaded(0);
+
+        assertTrue(uploads.stop());
+    }
+
+    private void append(long receivedTime, int length) throws Exception {
+        store.append(ByteBuffer.wrap(TestFiles.patternBytes(length, (int) receivedTime)), receivedTime);
+    }
+}
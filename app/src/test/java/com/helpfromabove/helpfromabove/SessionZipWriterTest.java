@@ -0,0 +1,101 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for SessionZipWriter. The zip is read back with
+ * java.util.zip, which checks each stored entry's size and CRC.
+ */
+public class SessionZipWriterTest {
+    private File directory;
+    private SessionFrameStore store;
+
+    @Before
+    public void createStore() throws Exception {
+        directory = TestFiles.createTempDirectory("zip");
+        store = new SessionFrameStore(directory);
+        for (int i = 0; i < 4; i++) {
+            store.append(ByteBuffer.wrap(TestFiles.patternBytes(200 + i * 33, i)), 1000 + i);
+        }
+    }
+
+    @After
+    public void deleteStore() throws Exception {
+        store.close();
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void write_storesFramesAndManifest() throws Exception {
+        int[] indexes = {1, 3};
+        String[] names = {"b.jpg", "d.jpg"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        SessionZipWriter.write(store, indexes, names, out);
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < indexes.length; i++) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals(names[i], entry.getName());
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+
+            byte[] frame = TestFiles.toArray(store.readFrame(indexes[i]));
+            assertEquals(frame.length, entry.getSize());
+            assertEquals(frame.length, entry.getCompressedSize());
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            assertEquals(crc.getValue(), entry.getCrc());
+            assertArrayEquals(frame, readEntry(zip));
+        }
+
+        ZipEntry manifest = zip.getNextEntry();
+        assertEquals(SessionZipWriter.MANIFEST_FILE_NAME, manifest.getName());
+        assertEquals("name,receivedTime,length\n"
+                        + "b.jpg,1001," + store.getFrameLength(1) + "\n"
+                        + "d.jpg,1003," + store.getFrameLength(3) + "\n",
+                new String(readEntry(zip), "UTF-8"));
+        assertNull(zip.getNextEntry());
+        zip.close();
+    }
+
+    @Test
+    public void write_streamsFramesLargerThanAChunk() throws Exception {
+        //Larger than the 64 KB chunk the frames are streamed through
+        byte[] large = TestFiles.patternBytes(200 * 1024 + 17, 5);
+        int index = store.append(ByteBuffer.wrap(large), 2000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        SessionZipWriter.write(store, new int[]{index}, new String[]{"large.jpg"}, out);
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry entry = zip.getNextEntry();
+        assertEquals("large.jpg", entry.getName());
+        assertArrayEquals(large, readEntry(zip));
+        assertEquals(SessionZipWriter.MANIFEST_FILE_NAME, zip.getNextEntry().getName());
+        zip.close();
+    }
+
+    private static byte[] readEntry(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
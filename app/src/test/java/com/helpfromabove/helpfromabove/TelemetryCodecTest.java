@@ -0,0 +1,64 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for TelemetryCodec.
+ */
+public class TelemetryCodecTest {
+    @Test
+    public void encodeThenDecode_roundTrips() throws Exception {
+        Location location = TestLocation.create(1500000000123L, 37.4219983, -122.0840575, 152.25);
+        byte[] buffer = new byte[TelemetryCodec.MESSAGE_LENGTH];
+
+        int length = TelemetryCodec.encode(TelemetryCodec.TYPE_UAS_POSITION, location, buffer, 0);
+        Location decoded = TestLocation.create(0, 0, 0, 0);
+        assertEquals(TelemetryCodec.MESSAGE_LENGTH, length);
+        assertTrue(TelemetryCodec.decode(TelemetryCodec.TYPE_UAS_POSITION, buffer, 0, length, decoded));
+
+        assertEquals(1500000000123L, decoded.getTime());
+        assertEquals(37.4219983, decoded.getLatitude(), 1e-7);
+        assertEquals(-122.0840575, decoded.getLongitude(), 1e-7);
+        assertEquals(152.25, decoded.getAltitude(), 1e-3);
+    }
+
+    @Test
+    public void encode_isBigEndianAtOffset() throws Exception {
+        byte[] buffer = new byte[2 + TelemetryCodec.MESSAGE_LENGTH];
+        TelemetryCodec.encode(TelemetryCodec.TYPE_WAYPOINT, TestLocation.create(0x0102030405060708L, 0, 0, 0), buffer, 2);
+
+        assertEquals(0, buffer[0]);
+        assertEquals(0, buffer[1]);
+        assertEquals(1, buffer[2]);
+        assertEquals(TelemetryCodec.TYPE_WAYPOINT, buffer[3]);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, buffer[6 + i]);
+        }
+
+        Location decoded = TestLocation.create(0, 0, 0, 0);
+        assertTrue(TelemetryCodec.decode(TelemetryCodec.TYPE_WAYPOINT, buffer, 2, TelemetryCodec.MESSAGE_LENGTH, decoded));
+        assertEquals(0x0102030405060708L, decoded.getTime());
+    }
+
+    @Test
+    public void decode_rejectsInvalidMessages() throws Exception {
+        byte[] buffer = new byte[TelemetryCodec.MESSAGE_LENGTH];
+        TelemetryCodec.encode(TelemetryCodec.TYPE_UAS_POSITION, TestLocation.create(42, 1, 2, 3), buffer, 0);
+        Location untouched = TestLocation.create(7, 8, 9, 10);
+
+        //Wrong type, cut short and wrong version
+        assertFalse(TelemetryCodec.decode(TelemetryCodec.TYPE_WAYPOINT, buffer, 0, buffer.length, untouched));
+        assertFalse(TelemetryCodec.decode(TelemetryCodec.TYPE_UAS_POSITION, buffer, 0, buffer.length - 1, untouched));
+        buffer[0] = 2;
+        assertFalse(TelemetryCodec.decode(TelemetryCodec.TYPE_UAS_POSITION, buffer, 0, buffer.length, untouched));
+
+        assertEquals(7, untouched.getTime());
+        assertEquals(8, untouched.getLatitude(), 0);
+        assertEquals(9, untouched.getLongitude(), 0);
+        assertEquals(10, untouched.getAltitude(), 0);
+    }
+}
@@ -0,0 +1,70 @@
+package com.helpfromabove.helpfromabove;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * File and buffer helpers shared by the local unit tests.
+ */
+class TestFiles {
+    private TestFiles() {
+    }
+
+    /*
+     * Makes a new, empty directory in the temporary directory.
+     */
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not make directory: " + directory);
+        }
+        return directory;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /*
+     * Copies the bytes between the buffer's position and limit, without
+     * changing its position.
+     */
+    static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += fis.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            fis.close();
+        }
+        return bytes;
+    }
+
+    /*
+     * Bytes that differ with length and seed.
+     */
+    static byte[] patternBytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+}
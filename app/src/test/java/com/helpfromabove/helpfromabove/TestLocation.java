@@ -0,0 +1,67 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+
+/**
+ * A Location that keeps its values in fields. Location is a framework
+ * class, so in local unit tests its own getters and setters do nothing.
+ */
+class TestLocation extends Location {
+    private long time;
+    private double latitude;
+    private double longitude;
+    private double altitude;
+
+    TestLocation() {
+        super("test");
+    }
+
+    static Location create(long time, double latitude, double longitude, double altitude) {
+        Location location = new TestLocation();
+        location.setTime(time);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAltitude(altitude);
+        return location;
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    @Override
+    public double getLatitude() {
+        return latitude;
+    }
+
+    @Override
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    @Override
+    public double getLongitude() {
+        return longitude;
+    }
+
+    @Override
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    @Override
+    public double getAltitude() {
+        return altitude;
+    }
+
+    @Override
+    public void setAltitude(double altitude) {
+        this.altitude = altitude;
+    }
+}
@@ -0,0 +1,119 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for UdpTelemetryChannel, with a socket on the loopback
+ * address standing in for the UASC.
+ */
+public class UdpTelemetryChannelTest {
+    private static final int PACKET_LENGTH = 4 + TelemetryCodec.MESSAGE_LENGTH;
+
+    private final Semaphore received = new Semaphore(0);
+    private DatagramSocket uasc;
+    private SocketAddress subscriber;
+    private UdpTelemetryChannel channel;
+
+    @Before
+    public void subscribe() throws Exception {
+        uasc = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        uasc.setSoTimeout(5000);
+        channel = new UdpTelemetryChannel("127.0.0.1", uasc.getLocalPort(), new UdpTelemetryChannel.Listener() {
+            @Override
+            public void onPositionReceived(Location location) {
+                received.release();
+            }
+        });
+        channel.open();
+        channel.subscribe();
+
+        DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+        uasc.receive(packet);
+        assertEquals("SUBT", new String(packet.getData(), 0, packet.getLength(), "US-ASCII"));
+        subscriber = packet.getSocketAddress();
+    }
+
+    @After
+    public void close() throws Exception {
+        channel.close();
+        uasc.close();
+    }
+
+    @Test
+    public void receive_dropsDuplicateAndOutOfOrderPackets() throws Exception {
+        int[] sequences = {1, 2, 5, 4, 5, 6};
+        for (int sequence : sequences) {
+            send(sequence);
+        }
+
+        awaitReceived(4);
+        UdpTelemetryChannel.Stats stats = channel.getStats();
+        assertEquals(4, stats.receivedCount);
+        assertEquals(2, stats.lostCount);
+        assertEquals(2, stats.discardedCount);
+        assertEquals(2 / 6.0, stats.getLossRate(), 1e-9);
+    }
+
+    @Test
+    public void receive_acceptsWrapAndRestartWithoutLoss() throws Exception {
+        send(Integer.MAX_VALUE);
+        send(Integer.MIN_VALUE);
+        //A jump back further than any reordering is the UASC restarting
+        send(Integer.MIN_VALUE - 5000);
+
+        awaitReceived(3);
+        assertEquals(0, channel.getStats().lostCount);
+        assertEquals(0, channel.getStats().discardedCount);
+    }
+
+    @Test
+    public void receive_ignoresShortPackets() throws Exception {
+        uasc.send(new DatagramPacket(new byte[PACKET_LENGTH - 1], PACKET_LENGTH - 1, subscriber));
+        send(1);
+
+        awaitReceived(1);
+        assertEquals(1, channel.getStats().receivedCount);
+        assertEquals(0, channel.getStats().discardedCount);
+    }
+
+    @Test
+    public void receive_measuresJitter() throws Exception {
+        send(1);
+        awaitReceived(1);
+        assertEquals(0, channel.getStats().jitterMillis, 0);
+
+        //The positions carry no time here, so the transit time grows with the wait
+        Thread.sleep(200);
+        send(2);
+        awaitReceived(1);
+        double jitterMillis = channel.getStats().jitterMillis;
+        assertTrue("jitter " + jitterMillis, jitterMillis > 200 / 16.0 / 2 && jitterMillis < 200 / 16.0 * 2);
+    }
+
+    private void send(int sequence) throws Exception {
+        byte[] packet = new byte[PACKET_LENGTH];
+        packet[0] = (byte) (sequence >> 24);
+        packet[1] = (byte) (sequence >> 16);
+        packet[2] = (byte) (sequence >> 8);
+        packet[3] = (byte) sequence;
+        TelemetryCodec.encode(TelemetryCodec.TYPE_UAS_POSITION, TestLocation.create(1000, 1, 2, 3), packet, 4);
+        uasc.send(new DatagramPacket(packet, packet.length, subscriber));
+    }
+
+    private void awaitReceived(int count) throws Exception {
+        assertTrue(received.tryAcquire(count, 5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,107 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for UploadJournal, in a temporary directory.
+ */
+public class UploadJournalTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = TestFiles.createTempDirectory("journal");
+    }
+
+    @After
+    public void deleteDirectory() throws Exception {
+        TestFiles.deleteRecursively(directory);
+    }
+
+    @Test
+    public void reopen_keepsFolderAndUploads() throws Exception {
+        assertFalse(UploadJournal.exists(directory));
+        UploadJournal journal = new UploadJournal(directory, "/Help_From_Above/session");
+        journal.markUploaded(0);
+        journal.markUploaded(5);
+        journal.markUploaded(5);
+        journal.close();
+        assertTrue(UploadJournal.exists(directory));
+
+        //An existing journal keeps the folder it was made for
+        journal = new UploadJournal(directory, "/other");
+        assertEquals("/Help_From_Above/session", journal.getCloudFolder());
+        assertEquals(2, journal.getUploadedCount());
+        assertTrue(journal.isUploaded(0));
+        assertFalse(journal.isUploaded(1));
+        assertTrue(journal.isUploaded(5));
+        journal.close();
+    }
+
+    @Test
+    public void open_dropsTruncatedRecord() throws Exception {
+        UploadJournal journal = new UploadJournal(directory, "/folder");
+        journal.markUploaded(1);
+        journal.markUploaded(2);
+        journal.close();
+
+        //A crash part way through writing the last record
+        File file = new File(directory, "uploads.journal");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        journal = UploadJournal.open(directory);
+        assertEquals("/folder", journal.getCloudFolder());
+        assertEquals(1, journal.getUploadedCount());
+        assertFalse(journal.isUploaded(2));
+
+        //Records go after the ones that were kept
+        journal.markUploaded(3);
+        journal.close();
+        journal = UploadJournal.open(directory);
+        assertTrue(journal.isUploaded(1));
+        assertTrue(journal.isUploaded(3));
+        assertEquals(2, journal.getUploadedCount());
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsMissingJournal() throws Exception {
+        UploadJournal.open(directory);
+    }
+
+    @Test
+    public void open_rejectsEmptyJournalWithoutWritingHeader() throws Exception {
+        File file = new File(directory, "uploads.journal");
+        assertTrue(file.createNewFile());
+
+        try {
+            UploadJournal.open(directory);
+            fail("Opened an empty journal");
+        } catch (IOException iOE) {
+            //Expected
+        }
+        assertEquals(0, file.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsCutShortHeader() throws Exception {
+        UploadJournal journal = new UploadJournal(directory, "/a/long/cloud/folder");
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, "uploads.journal"), "rw");
+        raf.setLength(12);
+        raf.close();
+
+        UploadJournal.open(directory);
+    }
+}
@@ -0,0 +1,95 @@
+package com.helpfromabove.helpfromabove;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for UploadQualityController.
+ */
+public class UploadQualityControllerTest {
+    private final UploadQualityController controller = new UploadQualityController(30, 90, 4);
+
+    @Test
+    public void targetBytes_unknownUntilMeasured() throws Exception {
+        assertEquals(90, controller.getQuality());
+        assertEquals(1, controller.getSampleSize());
+        assertEquals(-1, controller.getTargetBytes());
+
+        controller.onUploadComplete(1000, 10, true);
+        assertEquals(-1, controller.getTargetBytes());
+    }
+
+    @Test
+    public void targetBytes_scalesWithConcurrency() throws Exception {
+        //100 bytes per ms with a frame every 100 ms
+        framesEvery(100);
+        controller.onUploadComplete(1000, 10, true);
+        assertEquals(8000, controller.getTargetBytes());
+
+        controller.setConcurrency(2);
+        assertEquals(16000, controller.getTargetBytes());
+    }
+
+    @Test
+    public void largeUploads_lowerQualityEveryFewUploads() throws Exception {
+        framesEvery(100);
+        controller.onUploadComplete(20000, 200, true);
+        controller.onUploadComplete(20000, 200, true);
+        assertEquals(90, controller.getQuality());
+
+        controller.onUploadComplete(20000, 200, true);
+        assertEquals(80, controller.getQuality());
+    }
+
+    @Test
+    public void failures_lowerQualityThenSize() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            controller.onUploadComplete(1000, 10, false);
+        }
+        assertEquals(30, controller.getQuality());
+        assertEquals(1, controller.getSampleSize());
+
+        //Halves the size and starts the quality again from the middle
+        controller.onUploadComplete(1000, 10, false);
+        assertEquals(60, controller.getQuality());
+        assertEquals(2, controller.getSampleSize());
+
+        for (int i = 0; i < 20; i++) {
+            controller.onUploadComplete(1000, 10, false);
+        }
+        assertEquals(30, controller.getQuality());
+        assertEquals(4, controller.getSampleSize());
+    }
+
+    @Test
+    public void smallUploads_raiseQuality() throws Exception {
+        framesEvery(100);
+        controller.onUploadComplete(1000, 10, false);
+        assertEquals(80, controller.getQuality());
+
+        for (int i = 0; i < 3; i++) {
+            controller.onUploadComplete(1000, 10, true);
+        }
+        assertEquals(90, controller.getQuality());
+    }
+
+    @Test
+    public void reset_restoresMaxQuality() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            controller.onUploadComplete(1000, 10, false);
+        }
+
+        controller.reset();
+
+        assertEquals(90, controller.getQuality());
+        assertEquals(1, controller.getSampleSize());
+        assertEquals(-1, controller.getTargetBytes());
+    }
+
+    private void framesEvery(long intervalMillis) {
+        for (int i = 1; i <= 3; i++) {
+            controller.onFrame(i * intervalMillis);
+        }
+    }
+}
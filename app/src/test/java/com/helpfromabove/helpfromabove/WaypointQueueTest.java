@@ -0,0 +1,82 @@
+package com.helpfromabove.helpfromabove;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for WaypointQueue.
+ */
+public class WaypointQueueTest {
+    @Test
+    public void offer_keepsNewestWaypoint() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        assertFalse(queue.offer(waypoint(10)));
+        Location newest = waypoint(20);
+        assertTrue(queue.offer(newest));
+
+        assertSame(newest, queue.take().getWaypoint());
+        assertNull(queue.take());
+        assertFalse(queue.isPending());
+    }
+
+    @Test
+    public void fold_thenSupersede_thenSend_keepsOffset() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        assertFalse(queue.foldAltitudeOffset(1));
+
+        queue.offer(waypoint(10));
+        assertTrue(queue.foldAltitudeOffset(1));
+        assertTrue(queue.foldAltitudeOffset(1));
+        queue.offer(waypoint(30));
+
+        assertEquals(32, queue.take().getWaypoint().getAltitude(), 0);
+        //The offset is only sent once
+        queue.offer(waypoint(40));
+        assertEquals(40, queue.take().getWaypoint().getAltitude(), 0);
+    }
+
+    @Test
+    public void putBack_returnsWaypointWithoutOffsetAdded() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.offer(waypoint(10));
+        queue.foldAltitudeOffset(-2);
+
+        WaypointQueue.Entry entry = queue.take();
+        assertEquals(8, entry.getWaypoint().getAltitude(), 0);
+        queue.putBack(entry);
+
+        assertEquals(8, queue.take().getWaypoint().getAltitude(), 0);
+    }
+
+    @Test
+    public void putBack_givesOffsetToNewerWaypoint() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.offer(waypoint(10));
+        queue.foldAltitudeOffset(3);
+
+        WaypointQueue.Entry entry = queue.take();
+        queue.offer(waypoint(50));
+        queue.putBack(entry);
+
+        assertEquals(53, queue.take().getWaypoint().getAltitude(), 0);
+    }
+
+    @Test
+    public void clear_dropsWaypointAndOffset() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.offer(waypoint(10));
+        queue.foldAltitudeOffset(5);
+
+        assertTrue(queue.clear());
+        assertFalse(queue.clear());
+        queue.offer(waypoint(20));
+        assertEquals(20, queue.take().getWaypoint().getAltitude(), 0);
+    }
+
+    private static Location waypoint(double altitude) {
+        return TestLocation.create(0, 40, -80, altitude);
+    }
+}